@@ -5,28 +5,48 @@ import generator.*;
 
 import java.io.IOException;
 
+import ast.ASTArena;
+import preprocessor.IncludePath;
+
 public class Assembler {
 	private Lexer   lex;
 	private Parser  parser;
 	private CodeGen gen;
 	private String  path;
+	private IncludePath includes;
 	
 	public Assembler(String path) {
-		this.path = path;
+		this(path, new IncludePath());
+	}
+	
+	/*
+	 * includes may be shared by every file of a batch
+	 */
+	public Assembler(String path, IncludePath includes) {
+		this.path     = path;
+		this.includes = includes;
 	}
 	
 	public void assembly() throws IOException {
-		lex = new Lexer(path);
+		lex = new Lexer(path, includes);
 		
-		if(!lex.lex())
+		if(lex.getError())
 			return;
 		
-		parser = new Parser(lex.getTokens());
+		ASTArena trees = null;
+		
+		// large sources are lexed in parallel chunks instead, which
+		// follow their includes in order
+		if(Runtime.getRuntime().availableProcessors() > 1 && !lex.isLarge())
+			trees = new FrontEnd(lex.getSymbols(), includes).build(lex.getSource());
+		
+		if(trees == null)
+			trees = parse();
 		
-		if(!parser.build())
+		if(trees == null)
 			return;
 		
-		gen = new CodeGen(parser.getTrees());
+		gen = new CodeGen(trees, lex.getSymbols(), includes);
 		
 		gen.generate(path);
 		
@@ -35,4 +55,20 @@ public class Assembler {
 		
 		gen.WriteToFile(path);
 	}
+	
+	/*
+	 * Large sources, or those whose include graph had errors or
+	 * macros, are parsed straight from the lexer, which follows
+	 * the includes
+	 */
+	private ASTArena parse() {
+		if(lex.isLarge() && !lex.lex())
+			return null;
+		
+		parser = new Parser(lex.isLarge() ? lex.getTokens() : lex.stream());
+		
+		if(!parser.build() || lex.getError())
+			return null;
+		return parser.getArena();
+	}
 }
\ No newline at end of file
@@ -0,0 +1,221 @@
+package assembler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import ast.*;
+import lexer.IncludeHandler;
+import lexer.Lexer;
+import lexer.TokenCache;
+import parser.Parser;
+import preprocessor.IncludePath;
+import preprocessor.Preprocessor;
+import preprocessor.Source;
+import symbols.SymbolTable;
+import tokens.TokenStream;
+
+/**********************************************
+ * Lexes and parses every file of the include  *
+ * graph at the same time. A file is mapped on *
+ * a virtual thread as soon as its %include is *
+ * lexed, then lexed and parsed on the fork    *
+ * join pool. The arenas are spliced back      *
+ * together in include order, each file once,  *
+ * by moving their node indexes.               *
+ *                                             *
+ * Files report errors in whatever order they  *
+ * finish, so their lexers and parsers report  *
+ * to a silent stream: on any error the caller *
+ * lexes the sources again in order to report  *
+ * them                                        *
+ *********************************************/
+public class FrontEnd implements IncludeHandler {
+	private static final PrintStream silent = new PrintStream(OutputStream.nullOutputStream());
+	private SymbolTable symbols;
+	private IncludePath     includes;
+	private ConcurrentHashMap<Path, CompletableFuture<ASTArena>> units;
+	private ExecutorService io;
+	private HashSet<Path>   spliced;
+	private ArrayDeque<Path> active;
+	private ASTArena        trees;
+	private boolean         error;
+	
+	public FrontEnd(SymbolTable symbols, IncludePath includes) {
+		this.symbols  = symbols;
+		this.includes = includes;
+		
+		units    = new ConcurrentHashMap<>();
+		spliced  = new HashSet<>();
+		active   = new ArrayDeque<>();
+		trees    = new ASTArena();
+		error    = false;
+	}
+	
+	/*
+	 * Returns null when any file had errors
+	 */
+	public ASTArena build(Source root) throws IOException {
+		Path key = Path.of(root.getPath()).toRealPath();
+		CompletableFuture<ASTArena> unit = new CompletableFuture<>();
+		
+		units.put(key, unit);
+		spliced.add(key);
+		
+		try {
+			// the root is parsed on this thread, its includes start
+			// on their own as soon as they are lexed
+			unit.complete(parse(root));
+			
+			if(unit.join() == null)
+				return null;
+			
+			// nothing to splice, the root arena is used as it is
+			if(!hasIncludes(unit.join()))
+				return unit.join();
+			
+			splice(key, unit.join());
+		}
+		finally {
+			await();
+			
+			if(io != null)
+				io.close();
+		}
+		
+		if(error)
+			return null;
+		return trees;
+	}
+	
+	/*
+	 * Called by the lexers while they run, the first
+	 * include of a file starts its own lexer
+	 */
+	@Override
+	public void include(String path) throws IOException {
+		Path key = includes.resolve(path);
+		
+		units.computeIfAbsent(key, k -> CompletableFuture
+				.supplyAsync(() -> map(k), io())
+				.thenApplyAsync(buffer -> buffer == null ? null : parse(new Source(k.toString(), buffer)), ForkJoinPool.commonPool()));
+	}
+	
+	/*
+	 * The executor is only started by the first include
+	 */
+	private synchronized ExecutorService io() {
+		if(io == null)
+			io = Executors.newVirtualThreadPerTaskExecutor();
+		return io;
+	}
+	
+	/*
+	 * Files still being lexed may include more, so this
+	 * waits until no new file shows up
+	 */
+	private void await() {
+		int count;
+		
+		do {
+			count = units.size();
+			CompletableFuture.allOf(units.values().toArray(CompletableFuture[]::new)).handle((v, e) -> null).join();
+		}while(units.size() != count);
+	}
+	
+	private ASTArena parse(Source source) {
+		if(TokenCache.isCacheable(source)) {
+			TokenStream tokens = TokenCache.tokens(source, symbols, silent);
+			Parser      parser = tokens == null ? null : new Parser(tokens, silent);
+			
+			if(parser == null || !parser.build() || parser.hasMacros())
+				return null;
+			return parser.getArena();
+		}
+		
+		Lexer  lex    = new Lexer(source, symbols, this, silent);
+		Parser parser = new Parser(lex.stream(), silent);
+		
+		// a MACRO may be used by the files after this one, which
+		// are parsed on their own, so those are parsed in order
+		if(!parser.build() || lex.getError() || parser.hasMacros())
+			return null;
+		return parser.getArena();
+	}
+	
+	private static boolean hasIncludes(ASTArena unit) {
+		for(int i = 0; i < unit.getStatementCount(); i++) {
+			int node = unit.getStatement(i);
+			
+			if(node >= 0 && unit.kind(node) == AType.INCLUDE)
+				return true;
+		}
+		return false;
+	}
+	
+	private void splice(Path key, ASTArena unit) {
+		int base = trees.merge(unit);
+		
+		active.push(key);
+		
+		for(int i = 0; i < unit.getStatementCount(); i++) {
+			int node = unit.getStatement(i);
+			
+			if(node < 0 || unit.kind(node) != AType.INCLUDE) {
+				trees.addStatement(node < 0 ? node : base + node);
+				continue;
+			}
+			
+			Path child = resolve(unit.string(node));
+			
+			// reported when the caller lexes the sources in order
+			if(active.contains(child)) {
+				error = true;
+				continue;
+			}
+			
+			if(!spliced.add(child))
+				continue;
+			
+			ASTArena included = units.get(child).join();
+			
+			if(included == null) {
+				error = true;
+				continue;
+			}
+			
+			splice(child, included);
+		}
+		
+		active.pop();
+	}
+	
+	/*
+	 * Already resolved by include() while the file was lexed
+	 */
+	private Path resolve(String path) {
+		try {
+			return includes.resolve(path);
+		}
+		catch(IOException e) {
+			return null;
+		}
+	}
+	
+	private static ByteBuffer map(Path path) {
+		try {
+			return Preprocessor.map(path);
+		}
+		catch(IOException e) {
+			return null;
+		}
+	}
+}
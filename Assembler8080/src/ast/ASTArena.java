@@ -0,0 +1,428 @@
+package ast;
+import java.util.Arrays;
+
+import tokens.TokenType;
+
+/********************************************
+ * The trees of a program flattened into    *
+ * parallel int arrays, a node is an index. *
+ * Children are stored before their parent  *
+ * and the statements are kept in order, so *
+ * the code generator reads them as a plain *
+ * scan over contiguous memory.             *
+ *                                          *
+ * value is the literal, the symbol, the    *
+ * register or operator ordinal, or the     *
+ * string index. left/right are the         *
+ * operands. The constant of an OFFSET is   *
+ * kept in right, the value of an EQU/SET   *
+ * in left, INCBIN keeps its file in value  *
+ * and its offset and length in left/right, *
+ * DS/FILL their count and value.           *
+ *                                          *
+ * A BYTE/WORD node keeps the index of its  *
+ * packed bytes in value, and the elements  *
+ * that are evaluated as (offset, node)     *
+ * pairs of lists: left is the first pair,  *
+ * right the number of pairs.               *
+ *                                          *
+ * The nodes of an expression are a range   *
+ * in postfix order ending at its root, so  *
+ * it is evaluated by a loop over that      *
+ * range with a stack, nothing else has to  *
+ * be compiled.                             *
+ *                                          *
+ * The parser emits the nodes straight into *
+ * it. A macro body is kept in an arena of  *
+ * its own and copied node by node into the *
+ * arena of the code using the macro        *
+ *******************************************/
+public class ASTArena {
+	private static final AType[] KINDS = AType.values();
+	private final int initialCapacity = 256;
+	private byte[]   kinds;
+	private int[]    values;
+	private int[]    lefts;
+	private int[]    rights;
+	private int[]    lines;
+	private int[]    firsts;
+	private int      size;
+	private int[]    lists;
+	private int      listSize;
+	private int[]    roots;
+	private int      rootCount;
+	private String[] strings;
+	private int      stringCount;
+	private byte[][] blobs;
+	private int      blobCount;
+	private byte[]   packed;
+	private int      packedSize;
+	private int      width;
+	private int      list;
+	
+	public ASTArena() {
+		kinds   = new byte[initialCapacity];
+		values  = new int[initialCapacity];
+		lefts   = new int[initialCapacity];
+		rights  = new int[initialCapacity];
+		lines   = new int[initialCapacity];
+		firsts  = new int[initialCapacity];
+		lists   = new int[initialCapacity];
+		roots   = new int[initialCapacity];
+		strings = new String[16];
+		blobs   = new byte[16][];
+		packed  = new byte[64];
+	}
+	
+	public void addStatement(int node) {
+		if(rootCount == roots.length)
+			roots = Arrays.copyOf(roots, rootCount << 1);
+		roots[rootCount++] = node;
+	}
+	
+	/*
+	 * Empties the arena to be filled again
+	 */
+	public void clear() {
+		Arrays.fill(strings, 0, stringCount, null);
+		Arrays.fill(blobs, 0, blobCount, null);
+		
+		size        = 0;
+		listSize    = 0;
+		rootCount   = 0;
+		stringCount = 0;
+		blobCount   = 0;
+	}
+	
+	/*
+	 * A node that is its own range: a leaf, or one whose
+	 * operands are not evaluated as part of it
+	 */
+	public int node(AType kind, int value, int left, int right, int line) {
+		return node(kind, value, left, right, line, size);
+	}
+	
+	public int node(AType kind, int value, int left, int right, int line, int first) {
+		if(size == kinds.length)
+			grow(size << 1);
+		
+		kinds[size]  = (byte)kind.ordinal();
+		values[size] = value;
+		lefts[size]  = left;
+		rights[size] = right;
+		lines[size]  = line;
+		firsts[size] = first;
+		
+		return size++;
+	}
+	
+	/*
+	 * Drops the nodes from node on, the parser folds
+	 * constant operands it has already emitted
+	 */
+	public void truncate(int node) {
+		size = node;
+	}
+	
+	/*
+	 * left op right, whose nodes start at from. Both sides constant
+	 * are replaced by a single literal, a constant added to or
+	 * subtracted from a symbol by an OFFSET. A division by zero or a
+	 * negative shift is left to the code generator, which reports it
+	 */
+	public int fold(int from, int left, int right, TokenType op, int line) {
+		if(left < 0 || right < 0)
+			return node(AType.BINARYEXPR, op.ordinal(), left, right, line, from);
+		
+		if(kind(left) == AType.LITERAL && kind(right) == AType.LITERAL) {
+			int r = values[right];
+			
+			if(!BinaryExpr.isInvalid(op, r)) {
+				int value = BinaryExpr.apply(op, values[left], r);
+				
+				truncate(from);
+				return node(AType.LITERAL, value, -1, -1, line);
+			}
+		}
+		
+		if(kind(right) == AType.LITERAL && isSymbol(left) && (op == TokenType.TK_PLUS || op == TokenType.TK_MINUS)) {
+			int r      = values[right];
+			int symbol = values[left];
+			int offset = offsetOf(left) + (op == TokenType.TK_PLUS ? r : -r);
+			
+			truncate(from);
+			return node(AType.OFFSET, symbol, -1, offset, line);
+		}
+		
+		if(kind(left) == AType.LITERAL && isSymbol(right) && op == TokenType.TK_PLUS) {
+			int symbol = values[right];
+			int offset = offsetOf(right) + values[left];
+			
+			truncate(from);
+			return node(AType.OFFSET, symbol, -1, offset, line);
+		}
+		
+		return node(AType.BINARYEXPR, op.ordinal(), left, right, line, from);
+	}
+	
+	public int unary(int from, int operand, TokenType op, int line) {
+		if(operand < 0)
+			return -1;
+		
+		if(kind(operand) == AType.LITERAL) {
+			int value = UnaryExpr.apply(op, values[operand]);
+			
+			truncate(from);
+			return node(AType.LITERAL, value, -1, -1, line);
+		}
+		return node(AType.UNARYEXPR, op.ordinal(), operand, -1, line, from);
+	}
+	
+	private boolean isSymbol(int node) {
+		return kind(node) == AType.IDENTIFIER || kind(node) == AType.OFFSET;
+	}
+	
+	private int offsetOf(int node) {
+		return kind(node) == AType.IDENTIFIER ? 0 : rights[node];
+	}
+	
+	private void grow(int capacity) {
+		kinds  = Arrays.copyOf(kinds, capacity);
+		values = Arrays.copyOf(values, capacity);
+		lefts  = Arrays.copyOf(lefts, capacity);
+		rights = Arrays.copyOf(rights, capacity);
+		lines  = Arrays.copyOf(lines, capacity);
+		firsts = Arrays.copyOf(firsts, capacity);
+	}
+	
+	public int addString(String str) {
+		if(stringCount == strings.length)
+			strings = Arrays.copyOf(strings, stringCount << 1);
+		
+		strings[stringCount] = str;
+		
+		return stringCount++;
+	}
+	
+	private int blob(byte[] bytes) {
+		if(blobCount == blobs.length)
+			blobs = Arrays.copyOf(blobs, blobCount << 1);
+		
+		blobs[blobCount] = bytes;
+		
+		return blobCount++;
+	}
+	
+	private void pair(int offset, int node) {
+		if(listSize + 2 > lists.length)
+			lists = Arrays.copyOf(lists, lists.length << 1);
+		
+		lists[listSize++] = offset;
+		lists[listSize++] = node;
+	}
+	
+	/*
+	 * A BYTE/WORD declaration is emitted as beginData(), one
+	 * element() per element and endData(). They do not nest
+	 */
+	public void beginData(int width) {
+		this.width = width;
+		
+		packedSize = 0;
+		list       = listSize;
+	}
+	
+	/*
+	 * Strings and literals that fit are packed and their node
+	 * dropped, the other elements are evaluated. -1 is kept,
+	 * the code generator reports it
+	 */
+	public void element(int node) {
+		if(node >= 0 && kind(node) == AType.STRING) {
+			String str = strings[values[node]];
+			
+			if(values[node] == stringCount - 1)
+				strings[--stringCount] = null;
+			size = node;
+			
+			for(int i = 0; i < str.length(); i++)
+				put(str.charAt(i));
+			return;
+		}
+		
+		// bytes that do not fit are left for the generator to warn about
+		if(node >= 0 && kind(node) == AType.LITERAL && (width == 2 || values[node] <= 0xFF)) {
+			size = node;
+			put(values[node]);
+			return;
+		}
+		
+		pair(packedSize, node);
+		put(0);
+	}
+	
+	private void put(int value) {
+		if(packedSize + width > packed.length)
+			packed = Arrays.copyOf(packed, packed.length << 1);
+		
+		packed[packedSize++] = (byte)value;
+		
+		if(width == 2)
+			packed[packedSize++] = (byte)(value >> 8);
+	}
+	
+	/*
+	 * Bytes already packed, from the data of another BYTE/WORD node
+	 */
+	public void pack(byte[] bytes, int from, int to) {
+		if(packedSize + to - from > packed.length)
+			packed = Arrays.copyOf(packed, Math.max(packed.length << 1, packedSize + to - from));
+		
+		System.arraycopy(bytes, from, packed, packedSize, to - from);
+		packedSize += to - from;
+	}
+	
+	public int endData(AType kind, int line) {
+		return node(kind, blob(Arrays.copyOf(packed, packedSize)), list, (listSize - list) / 2, line);
+	}
+	
+	/*
+	 * Copies the nodes of unit after ours, with the node, string,
+	 * blob and list indexes it holds moved past ours. Returns where
+	 * its nodes start, the caller adds its statements
+	 */
+	public int merge(ASTArena unit) {
+		int base = size;
+		int strs = stringCount;
+		int bins = blobCount;
+		int lst  = listSize;
+		
+		if(size + unit.size > kinds.length)
+			grow(Math.max(size + unit.size, size << 1));
+		
+		for(int i = 0; i < unit.size; i++) {
+			int node = base + i;
+			
+			kinds[node]  = unit.kinds[i];
+			values[node] = unit.values[i];
+			lefts[node]  = unit.lefts[i];
+			rights[node] = unit.rights[i];
+			lines[node]  = unit.lines[i];
+			firsts[node] = unit.firsts[i] + base;
+			
+			switch(KINDS[kinds[node]]) {
+				case AType.STRING:
+				case AType.INCLUDE:
+					values[node] += strs;
+					break;
+				case AType.INCBIN:
+					values[node] += strs;
+					lefts[node]   = move(lefts[node], base);
+					rights[node]  = move(rights[node], base);
+					break;
+				case AType.BYTEDECLARATION:
+				case AType.WORDDECLARATION:
+					values[node] += bins;
+					lefts[node]  += lst;
+					break;
+				case AType.EQU:
+				case AType.SET:
+				case AType.DS:
+				case AType.FILL:
+				case AType.BINARYEXPR:
+				case AType.UNARYEXPR:
+				case AType.MNEMONIC:
+					lefts[node]  = move(lefts[node], base);
+					rights[node] = move(rights[node], base);
+					break;
+				default:
+					break;
+			}
+		}
+		
+		size += unit.size;
+		
+		for(int i = 0; i < unit.listSize; i += 2)
+			pair(unit.lists[i], move(unit.lists[i + 1], base));
+		
+		for(int i = 0; i < unit.stringCount; i++)
+			addString(unit.strings[i]);
+		
+		for(int i = 0; i < unit.blobCount; i++)
+			blob(unit.blobs[i]);
+		
+		return base;
+	}
+	
+	private static int move(int node, int base) {
+		return node < 0 ? node : node + base;
+	}
+	
+	public int getStatementCount() {
+		return rootCount;
+	}
+	
+	public int getStatement(int i) {
+		return roots[i];
+	}
+	
+	public int getSize() {
+		return size;
+	}
+	
+	public AType kind(int node) {
+		return KINDS[kinds[node]];
+	}
+	
+	public int value(int node) {
+		return values[node];
+	}
+	
+	public int left(int node) {
+		return lefts[node];
+	}
+	
+	public int right(int node) {
+		return rights[node];
+	}
+	
+	public int line(int node) {
+		return lines[node];
+	}
+	
+	/*
+	 * First node of the subtree rooted at node
+	 */
+	public int first(int node) {
+		return firsts[node];
+	}
+	
+	/*
+	 * Packed bytes of a BYTE/WORD node, zero where an element is evaluated
+	 */
+	public byte[] data(int node) {
+		return blobs[values[node]];
+	}
+	
+	/*
+	 * Evaluated element i of a BYTE/WORD node, -1 where the parser failed
+	 */
+	public int element(int node, int i) {
+		return lists[lefts[node] + 2 * i + 1];
+	}
+	
+	/*
+	 * Where element i goes, from the first byte of the node
+	 */
+	public int offset(int node, int i) {
+		return lists[lefts[node] + 2 * i];
+	}
+	
+	public int count(int node) {
+		return rights[node];
+	}
+	
+	public String string(int node) {
+		return strings[values[node]];
+	}
+}
@@ -5,9 +5,17 @@ public enum AType {
 	IDENTIFIER,
 	MNEMONIC,
 	BINARYEXPR,
+	UNARYEXPR,
 	REGISTER,
 	LABEL,
 	BYTEDECLARATION,
 	WORDDECLARATION,
-	STRING
+	STRING,
+	INCLUDE,
+	OFFSET,
+	EQU,
+	SET,
+	INCBIN,
+	DS,
+	FILL
 }
\ No newline at end of file
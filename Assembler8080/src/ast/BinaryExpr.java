@@ -25,4 +25,46 @@ public class BinaryExpr extends AST {
 	public TokenType getOP() {
 		return op;
 	}
+	
+	/*
+	 * A division by zero or a negative shift count, which
+	 * the code generator reports instead of computing
+	 */
+	public static boolean isInvalid(TokenType op, int r) {
+		if(r == 0 && (op == TokenType.TK_DIV || op == TokenType.TK_MOD))
+			return true;
+		return r < 0 && (op == TokenType.TK_SHL || op == TokenType.TK_SHR);
+	}
+	
+	/*
+	 * l op r, values are 16 bit words for the shifts, so
+	 * shifting by 16 or more leaves 0. The caller checks for
+	 * a division by zero and a negative shift count first
+	 */
+	public static int apply(TokenType op, int l, int r) {
+		switch(op) {
+			case TokenType.TK_PLUS:
+				return l + r;
+			case TokenType.TK_MINUS:
+				return l - r;
+			case TokenType.TK_MUL:
+				return l * r;
+			case TokenType.TK_DIV:
+				return l / r;
+			case TokenType.TK_MOD:
+				return l % r;
+			case TokenType.TK_AND:
+				return l & r;
+			case TokenType.TK_OR:
+				return l | r;
+			case TokenType.TK_XOR:
+				return l ^ r;
+			case TokenType.TK_SHL:
+				return r >= 16 ? 0 : (l << r) & 0xFFFF;
+			case TokenType.TK_SHR:
+				return r >= 16 ? 0 : (l & 0xFFFF) >>> r;
+			default:
+				throw new IllegalArgumentException(op.toString());
+		}
+	}
 }
@@ -0,0 +1,26 @@
+package ast;
+
+/*
+ * name EQU value, or name SET value. An EQU symbol is defined
+ * once and may be used before it, SET can be given a new value
+ * further on and takes each one in source order
+ */
+public class Equate extends AST {
+	private int symbol;
+	private AST value;
+	
+	public Equate(AType type, int symbol, AST value, int line) {
+		super(type, line);
+		
+		this.symbol = symbol;
+		this.value  = value;
+	}
+	
+	public int getSymbol() {
+		return symbol;
+	}
+	
+	public AST getValue() {
+		return value;
+	}
+}
@@ -1,15 +1,15 @@
 package ast;
 
 public class Identifier extends AST {
-	private String id;
+	private int symbol;
 	
-	public Identifier(String id, int line) {
+	public Identifier(int symbol, int line) {
 		super(AType.IDENTIFIER, line);
 		
-		this.id = id;
+		this.symbol = symbol;
 	}
 	
-	public String getID() {
-		return id;
+	public int getSymbol() {
+		return symbol;
 	}
 }
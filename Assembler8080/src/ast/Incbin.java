@@ -0,0 +1,31 @@
+package ast;
+
+/*
+ * INCBIN "file"[, offset[, length]], offset and
+ * length are null when they were not given
+ */
+public class Incbin extends AST {
+	private String path;
+	private AST    offset;
+	private AST    length;
+	
+	public Incbin(String path, AST offset, AST length, int line) {
+		super(AType.INCBIN, line);
+		
+		this.path   = path;
+		this.offset = offset;
+		this.length = length;
+	}
+	
+	public String getPath() {
+		return path;
+	}
+	
+	public AST getOffset() {
+		return offset;
+	}
+	
+	public AST getLength() {
+		return length;
+	}
+}
@@ -0,0 +1,15 @@
+package ast;
+
+public class Include extends AST {
+	private String path;
+	
+	public Include(String path, int line) {
+		super(AType.INCLUDE, line);
+		
+		this.path = path;
+	}
+	
+	public String getPath() {
+		return path;
+	}
+}
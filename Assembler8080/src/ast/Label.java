@@ -1,15 +1,15 @@
 package ast;
 
 public class Label extends AST {
-	private String id;
+	private int symbol;
 	
-	public Label(String id, int line) {
+	public Label(int symbol, int line) {
 		super(AType.LABEL, line);
 		
-		this.id = id;
+		this.symbol = symbol;
 	}
 	
-	public String getID() {
-		return id;
+	public int getSymbol() {
+		return symbol;
 	}
 }
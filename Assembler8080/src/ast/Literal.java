@@ -1,7 +1,7 @@
 package ast;
 
 public class Literal extends AST {
-	private int value;
+	private final int value;
 	
 	public Literal(int value, int line) {
 		super(AType.LITERAL, line);
@@ -12,4 +12,4 @@ public class Literal extends AST {
 	public int getValue() {
 		return value;
 	}
-}
\ No newline at end of file
+}
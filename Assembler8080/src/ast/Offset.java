@@ -0,0 +1,26 @@
+package ast;
+
+/*
+ * symbol + constant, what the parser folds sums and
+ * differences of a symbol and literals into, so the
+ * value is a single lookup once the symbol is known
+ */
+public class Offset extends AST {
+	private int symbol;
+	private int offset;
+	
+	public Offset(int symbol, int offset, int line) {
+		super(AType.OFFSET, line);
+		
+		this.symbol = symbol;
+		this.offset = offset;
+	}
+	
+	public int getSymbol() {
+		return symbol;
+	}
+	
+	public int getOffset() {
+		return offset;
+	}
+}
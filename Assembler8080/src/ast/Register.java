@@ -2,7 +2,7 @@ package ast;
 import tokens.TokenType;
 
 public class Register extends AST {
-	private TokenType rg;
+	private final TokenType rg;
 	
 	public Register(TokenType rg, int line) {
 		super(AType.REGISTER, line);
@@ -13,8 +13,4 @@ public class Register extends AST {
 	public TokenType getRG() {
 		return rg;
 	}
-	
-	public void setRG(TokenType type) {
-		rg = type;
-	}
 }
@@ -0,0 +1,25 @@
+package ast;
+
+/*
+ * DS count, or FILL count, value. A single node whatever the
+ * count, value is null for DS
+ */
+public class Reserve extends AST {
+	private AST count;
+	private AST value;
+	
+	public Reserve(AType type, AST count, AST value, int line) {
+		super(type, line);
+		
+		this.count = count;
+		this.value = value;
+	}
+	
+	public AST getCount() {
+		return count;
+	}
+	
+	public AST getValue() {
+		return value;
+	}
+}
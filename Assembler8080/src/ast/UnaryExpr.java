@@ -0,0 +1,38 @@
+package ast;
+import tokens.TokenType;
+
+public class UnaryExpr extends AST {
+	private AST       operand;
+	private TokenType op;
+	
+	public UnaryExpr(AST operand, TokenType op, int line) {
+		super(AType.UNARYEXPR, line);
+		
+		this.operand = operand;
+		this.op      = op;
+	}
+	
+	public AST getOperand() {
+		return operand;
+	}
+	
+	public TokenType getOP() {
+		return op;
+	}
+	
+	/*
+	 * -v, HIGH v or LOW v
+	 */
+	public static int apply(TokenType op, int value) {
+		switch(op) {
+			case TokenType.TK_MINUS:
+				return -value;
+			case TokenType.TK_HIGH:
+				return (value >> 8) & 0xFF;
+			case TokenType.TK_LOW:
+				return value & 0xFF;
+			default:
+				throw new IllegalArgumentException(op.toString());
+		}
+	}
+}
@@ -1,24 +1,60 @@
 package entryPoint;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import assembler.*;
+import lexer.TokenCache;
+import preprocessor.IncludePath;
 
+/*
+ * Usage: [-I dir]... [--no-cache] file...
+ * every file is assembled on its own, the include
+ * search path and its lookups are shared by all of them.
+ * --no-cache lexes the .inc headers without the token cache
+ */
 public class EntryPoint {
 	public static void main(String[] args) {
+		IncludePath  includes = new IncludePath();
+		List<String> files    = new ArrayList<>();
 		
-		if(args.length == 0) {
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("--no-cache")) {
+				TokenCache.disable();
+				continue;
+			}
+			
+			if(!args[i].startsWith("-I")) {
+				files.add(args[i]);
+				continue;
+			}
+			
+			if(args[i].length() > 2) {
+				includes.add(args[i].substring(2));
+				continue;
+			}
+			
+			if(++i == args.length) {
+				System.out.println("Directory expected after -I!");
+				return;
+			}
+			includes.add(args[i]);
+		}
+		
+		if(files.isEmpty()) {
 			System.out.println("File expected!");
 			return;
 		}
 		
-		try {		
-			Assembler asm = new Assembler(args[0]);
-			
-			asm.assembly();
-		}
-		catch(IOException e) {
-			System.out.println("Error opening file " + args[0]);
-			return;
+		for(var file : files) {
+			try {		
+				Assembler asm = new Assembler(file, includes);
+				
+				asm.assembly();
+			}
+			catch(IOException e) {
+				System.out.println("Error opening file " + file);
+			}
 		}
 	}
 }
@@ -1,11 +1,16 @@
 package generator;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import tokens.TokenType;
-import java.util.HashMap;
+import symbols.SymbolTable;
+import preprocessor.IncludePath;
+import preprocessor.Preprocessor;
 
 import ast.*;
 /***********************************
@@ -15,49 +20,105 @@ import ast.*;
  * by: Eduardo S. Acauan           *
  **********************************/
 public class CodeGen {
-	private List<AST>  trees;
-	private List<Byte> program;
+	private final int  initialCapacity = 0x400;
+	private final int  maxPasses = 16;
+	private static final TokenType[] TYPES = TokenType.values();
+	private ASTArena   trees;
+	private byte[]     program;
 	private int 	   pc;
+	private int        end;
 	private int 	   origin;
 	private boolean    error;
-	private boolean    hasReference;
+	private boolean    unresolved;
+	private boolean    unsettled;
+	private boolean    guessing;
 	private int 	   pos;
-	private int        pass;
-	private HashMap<String, Integer> labels;
-	
-	public CodeGen(List<AST> trees) {
-		this.trees = trees;
-		program = new ArrayList<>();
+	private int        line;
+	private List<Fixup> fixups;
+	private SymbolTable symbols;
+	private int[]      equates;
+	private byte[]     visits;
+	private static final byte VISITING = 1;
+	private static final byte CYCLIC   = 2;
+	private boolean[]  moving;
+	private boolean[]  sets;
+	private List<Integer> settling;
+	private Layout     layout;
+	private int[]      stack;
+	private int        top;
+	private IncludePath includes;
+	
+	public CodeGen(ASTArena trees, SymbolTable symbols) {
+		this(trees, symbols, new IncludePath());
+	}
+	
+	/*
+	 * INCBIN files are looked up like included sources
+	 */
+	public CodeGen(ASTArena trees, SymbolTable symbols, IncludePath includes) {
+		this.trees    = trees;
+		this.includes = includes;
+		program = new byte[initialCapacity];
 		
 		origin = 0;
 		pc     = 0;
 		pos    = 0;
 		error  = false;
-		hasReference = false;
-		pass = 1;
+		unresolved = false;
+		
+		this.symbols = symbols;
+		fixups = new ArrayList<>();
 		
-		labels = new HashMap<>();
+		equates = new int[symbols.size()];
+		visits  = new byte[symbols.size()];
+		moving  = new boolean[symbols.size()];
+		sets    = new boolean[symbols.size()];
+		Arrays.fill(equates, -1);
+		
+		settling = new ArrayList<>();
+		layout   = new Layout();
+		stack    = new int[32];
 	}
 	
 	public void generate(String path) throws IOException {
+		defineEquates();
 		
 		while(!endStream()) {
-			switch(peek().getType()) {
+			if(peek() < 0) {
+				next();
+				continue;
+			}
+			
+			line = trees.line(peek());
+			
+			switch(trees.kind(peek())) {
 				case AType.MNEMONIC:
-					handleMnemonic((Mnemonic)peek());
+					handleMnemonic(peek());
 					break;
 				case AType.LABEL:
 					handleLabel();
 					break;
 				case AType.BYTEDECLARATION:
-					handleByte((ByteDecl)peek());
+					handleData(peek(), 1);
 					break;
 				case AType.WORDDECLARATION:
-					handleWord((WordDecl)peek());
+					handleData(peek(), 2);
 					break;
 				case AType.IDENTIFIER:
 					handleIDasLB();
 					break;
+				case AType.EQU:
+					break;
+				case AType.SET:
+					handleSet(peek());
+					break;
+				case AType.INCBIN:
+					handleIncbin(peek());
+					break;
+				case AType.DS:
+				case AType.FILL:
+					handleReserve(peek());
+					break;
 				default:
 					error("Invalid operation!");
 					break;
@@ -68,1764 +129,778 @@ public class CodeGen {
 		if(error)
 			return;
 		
-		if(hasReference && pass < 2) {
-			pass++;
-			origin = 0;
-			pos = 0;
-			pc = 0;
-			hasReference = false;
-			program.clear();
-			generate(path);
+		if(layout.getSegmentCount() > 0)
+			settle();
+		
+		if(error)
+			return;
+		
+		for(int i = 0; i < trees.getStatementCount(); i++) {
+			int node = trees.getStatement(i);
+			
+			if(node >= 0 && trees.kind(node) == AType.EQU && resolve(trees.value(node)) == SymbolTable.UNRESOLVED)
+				error("Undefined symbol!", trees.line(node));
 		}
+		
+		if(error)
+			return;
+		
+		patchFixups();
 	}
 	
-	private void handleMnemonic(Mnemonic m) {
-		switch(m.getIns()) {
-			case TokenType.TK_RET:
-				write8(0xC9);
-				return;
-			case TokenType.TK_NOP:
-				write8(0x00);
-				return;
-			case TokenType.TK_RLC:
-				write8(0x07);
-				return;
-			case TokenType.TK_RAL:
-				write8(0x17);
-				return;
-			case TokenType.TK_DAA:
-				write8(0x27);
-				return;
-			case TokenType.TK_STC:
-				write8(0x37);
-				return;
-			case TokenType.TK_RAR:
-				write8(0x0F);
-				return;
-			case TokenType.TK_RRC:
-				write8(0x1F);
-				return;
-			case TokenType.TK_CMC:
-				write8(0x2F);
-				return;
-			case TokenType.TK_CMA:
-				write8(0x3F);
-				return;
-			case TokenType.TK_RNZ:
-				write8(0xC0);
-				return;
-			case TokenType.TK_RNC:
-				write8(0xD0);
-				return;
-			case TokenType.TK_RPO:
-				write8(0xE0);
-				return;
-			case TokenType.TK_RZ:
-				write8(0xC8);
-				return;
-			case TokenType.TK_RC:
-				write8(0xD8);
-				return;
-			case TokenType.TK_RPE:
-				write8(0xE8);
-				return;
-			case TokenType.TK_RM:
-				write8(0xF8);
-				return;
-			case TokenType.TK_RPLUS:
-				write8(0xF0);
-				return;
-			case TokenType.TK_HLT:
-				write8(0x76);
-				return;
-			case TokenType.TK_DI:
-				write8(0xF3);
-				return;
-			case TokenType.TK_XCHG:
-				write8(0xEB);
-				return;
-			case TokenType.TK_XTHL:
-				write8(0xE3);
-				return;
-			case TokenType.TK_PCHL:
-				write8(0xE9);
-				return;
-			case TokenType.TK_SPHL:
-				write8(0xF9);
-				return;
-			case TokenType.TK_EI:
-				write8(0xFB);
-				return;
-			case TokenType.TK_MVI:
-				mvi(m);
-				return;
-			case TokenType.TK_JMP:
-				jmp(m);
-				return;
-			case TokenType.TK_ORG:
-				org(m);
-				return;
-			case TokenType.TK_LXI:
-				lxi(m);
-				return;
-			case TokenType.TK_STAX:
-				stax(m);
-				return;
-			case TokenType.TK_STA:
-				sta(m);
-				return;
-			case TokenType.TK_SHLD:
-				shld(m);
-				return;
-			case TokenType.TK_INX:
-				inx(m);
+	/*
+	 * An ORG that reads a label not placed yet, or one that may
+	 * still move, is a guess: its segment was laid out with the
+	 * value it had then. Those ORGs are evaluated again with the
+	 * labels of the previous pass until no origin changes. The
+	 * bytes stay where they are, a pass only visits the guessed
+	 * ORGs and rewrites the labels of the segments that moved,
+	 * the operands reading them were left as fixups
+	 */
+	private void settle() {
+		int moved = -1;
+		
+		for(int pass = 2; pass <= maxPasses; pass++) {
+			moved = -1;
+			
+			for(int symbol : settling)
+				symbols.setValue(symbol, SymbolTable.UNRESOLVED);
+			
+			for(int s = 0; s < layout.getSegmentCount(); s++) {
+				unresolved = false;
+				line       = layout.getLine(s);
+				
+				int value = extractValue(layout.getExpr(s));
+				
+				if(unresolved) {
+					error("Undefined symbol!", layout.getLine(s));
+					return;
+				}
+				
+				if(value == layout.getOrigin(s))
+					continue;
+				
+				layout.setOrigin(s, value);
+				
+				for(int l = layout.getFirstLabel(s); l < layout.getEndLabel(s); l++)
+					symbols.setValue(layout.getSymbol(l), layout.getOffset(l) + value);
+				moved = s;
+			}
+			
+			if(moved < 0)
 				return;
-			case TokenType.TK_INR:
-				inr(m);
-				break;
-			case TokenType.TK_DCR:
-				dcr(m);
-				break;
-			case TokenType.TK_LDAX:
-				ldax(m);
-				break;
-			case TokenType.TK_DAD:
-				dad(m);
-				break;
-			case TokenType.TK_DCX:
-				dcx(m);
-				break;
-			case TokenType.TK_MOV:
-				mov(m);
-				break;
-			case TokenType.TK_ADD:
-				add(m);
-				break;
-			case TokenType.TK_ADC:
-				adc(m);
-				break;
-			case TokenType.TK_SUB:
-				sub(m);
-				break;
-			case TokenType.TK_SBB:
-				sbb(m);
-				break;
-			case TokenType.TK_XRA:
-				xra(m);
-				break;
-			case TokenType.TK_ANA:
-				ana(m);
-				break;
-			case TokenType.TK_ORA:
-				ora(m);
-				break;
-			case TokenType.TK_CMP:
-				cmp(m);
-				break;
-			case TokenType.TK_JZ:
-				jz(m);
-				break;
-			case TokenType.TK_JNZ:
-				jnz(m);
-				break;
-			case TokenType.TK_JNC:
-				jnc(m);
-				break;
-			case TokenType.TK_JPO:
-				jpo(m);
-				break;
-			case TokenType.TK_JP:
-				jp(m);
-				break;
-			case TokenType.TK_POP:
-				pop(m);
-				break;
-			case TokenType.TK_PUSH:
-				pop(m);
-				break;
-			case TokenType.TK_OUT:
-				out(m);
-				break;
-			case TokenType.TK_CNZ:
-				cnz(m);
-				break;
-			case TokenType.TK_CNC:
-				cnc(m);
-				break;
-			case TokenType.TK_CPO:
-				cpo(m);
-				break;
-			case TokenType.TK_CPLUS:
-				cplus(m);
-				break;
-			case TokenType.TK_ADI:
-				adi(m);
-				break;
-			case TokenType.TK_SUI:
-				sui(m);
-				break;
-			case TokenType.TK_ORI:
-				adi(m);
-				break;
-			case TokenType.TK_ANI:
-				ani(m);
-				break;
-			case TokenType.TK_ACI:
-				aci(m);
-				break;
-			case TokenType.TK_SBI:
-				sbi(m);
-				break;
-			case TokenType.TK_XRI:
-				xri(m);
-				break;
-			case TokenType.TK_CPI:
-				cpi(m);
-				break;
-			case TokenType.TK_RST:
-				rst(m);
-				break;
-			case TokenType.TK_IN:
-				in(m);
-				break;
-			case TokenType.TK_CZ:
-				cz(m);
-				break;
-			case TokenType.TK_CC:
-				cc(m);
-				break;
-			case TokenType.TK_CPE:
-				cpe(m);
-				break;
-			case TokenType.TK_CM:
-				cm(m);
-				break;
-			case TokenType.TK_CALL:
-				call(m);
-				break;
-			default:
-				break;
 		}
+		
+		error("Addresses did not settle after " + maxPasses + " passes!", layout.getLine(moved));
 	}
 	
-	private void cpi(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
-			return;
+	/*
+	 * Every EQU is indexed by its symbol, then resolved in
+	 * source order. resolve() evaluates what a definition
+	 * depends on first, so each constant is computed once,
+	 * in dependency order, before any code is generated.
+	 * Those that depend on a label not yet placed are left
+	 * for when they are used or for the end of the pass
+	 */
+	private void defineEquates() {
+		for(int i = 0; i < trees.getStatementCount(); i++) {
+			int node = trees.getStatement(i);
+			
+			if(node < 0 || trees.kind(node) != AType.EQU)
+				continue;
+			
+			int symbol = trees.value(node);
+			
+			if(equates[symbol] >= 0)
+				error("Symbol " + symbols.getName(symbol) + " is already defined by EQU!", trees.line(node));
+			else
+				equates[symbol] = node;
 		}
 		
-		int value = extractValue(m.getArg1());
-		
-		write8(0xFE);
-		write8(value);
+		for(int i = 0; i < trees.getStatementCount(); i++) {
+			int node = trees.getStatement(i);
+			
+			if(node < 0)
+				continue;
+			if(trees.kind(node) == AType.EQU)
+				resolve(trees.value(node));
+			else if(trees.kind(node) == AType.SET && equates[trees.value(node)] >= 0)
+				error("Symbol " + symbols.getName(trees.value(node)) + " is already defined by EQU!", trees.line(node));
+			else if(trees.kind(node) == AType.SET)
+				sets[trees.value(node)] = true;
+		}
 	}
 	
-	private void xri(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
-			return;
-		}
+	/*
+	 * Value of an EQU symbol, UNRESOLVED while it depends on a
+	 * label that is not placed yet. A definition reached again
+	 * while it is being evaluated is a cycle, reported once
+	 */
+	private int resolve(int symbol) {
+		if(symbols.isResolved(symbol) || visits[symbol] == CYCLIC)
+			return symbols.getValue(symbol);
 		
-		int value = extractValue(m.getArg1());
+		int node = equates[symbol];
 		
-		write8(0xEE);
-		write8(value);
-	}
-	
-	private void sbi(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
-			return;
+		if(visits[symbol] == VISITING) {
+			error("Circular definition of " + symbols.getName(symbol) + "!", trees.line(node));
+			visits[symbol] = CYCLIC;
+			return SymbolTable.UNRESOLVED;
 		}
 		
-		int value = extractValue(m.getArg1());
+		boolean outer   = unresolved;
+		boolean settled = !unsettled;
+		int     from    = line;
 		
-		write8(0xDE);
-		write8(value);
-	}
-	
-	private void aci(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
-			return;
-		}
+		visits[symbol] = VISITING;
+		unresolved     = false;
+		unsettled      = false;
+		line           = trees.line(node);
 		
-		int value = extractValue(m.getArg1());
+		int value = extractValue(trees.left(node));
+		boolean pending = unresolved;
 		
-		write8(0xCE);
-		write8(value);
-	}
-	
-	private void call(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
-			return;
+		// an EQU over a label that may move, moves with it
+		if(unsettled && !moving[symbol]) {
+			moving[symbol] = true;
+			settling.add(symbol);
 		}
 		
-		int addr = extractValue(m.getArg1());
+		unresolved = outer;
+		unsettled  = !settled;
+		line       = from;
+		
+		if(visits[symbol] == VISITING)
+			visits[symbol] = 0;
+		
+		if(pending || visits[symbol] == CYCLIC)
+			return SymbolTable.UNRESOLVED;
 		
-		write8(0xCD);
-		write16(addr);
+		symbols.setValue(symbol, value);
+		return value;
 	}
 	
-	private void rst(Mnemonic m) {
-		if(!validLiteral(m.getArg1())){
-			error("Value expected!");
+	private void handleSet(int set) {
+		unresolved = false;
+		unsettled  = false;
+		
+		int value = extractValue(trees.left(set));
+		
+		if(unresolved || unsettled) {
+			error("SET value must be known at this point!");
 			return;
 		}
 		
-		int value = extractValue(m.getArg1());
-		
-		switch(value) {
-			case 0x00:
-				write8(0xC7);
+		symbols.setValue(trees.value(set), value);
+	}
+	
+	/*
+	 * Operands that referenced a label not yet defined, or one that
+	 * could still move, were emitted as zero placeholders, now that
+	 * every label is final they are evaluated once more and written
+	 * in place
+	 */
+	private void patchFixups() {
+		for(var f : fixups) {
+			unresolved = false;
+			line       = f.getLine();
+			
+			// SET symbols are read with the values they had where the operand was
+			swapSets(f.getSets());
+			
+			int value = extractValue(f.getExpr());
+			
+			swapSets(f.getSets());
+			
+			if(unresolved) {
+				error("Undefined symbol!", f.getLine());
+				continue;
+			}
+			
+			if(f.getWidth() == 1) {
+				check8(value, f.getLine());
+				program[f.getOffset()] = (byte)value;
+				continue;
+			}
+			
+			program[f.getOffset()]     = (byte)(value & 0xFF);
+			program[f.getOffset() + 1] = (byte)((value >> 8) & 0xFF);
+		}
+		
+		fixups.clear();
+	}
+	
+	private void handleMnemonic(int m) {
+		int ins  = trees.value(m);
+		int base = Opcodes.BASE[ins];
+		int arg1 = trees.left(m);
+		int arg2 = trees.right(m);
+		int r, r2;
+		
+		switch(Opcodes.FORM[ins]) {
+			case Opcodes.NONE:
+				write8(base);
+				return;
+			case Opcodes.IMM8:
+				if(!validOperand(arg1))
+					return;
+				write8(base);
+				emit8(arg1);
+				return;
+			case Opcodes.IMM16:
+				if(!validOperand(arg1))
+					return;
+				write8(base);
+				emit16(arg1);
+				return;
+			case Opcodes.SRC:
+				if((r = register(arg1, Opcodes.REG)) < 0)
+					return;
+				write8(base | r);
+				return;
+			case Opcodes.DST:
+				if((r = register(arg1, Opcodes.REG)) < 0)
+					return;
+				write8(base | r << 3);
+				return;
+			case Opcodes.MOV:
+				if((r = register(arg1, Opcodes.REG)) < 0 || (r2 = register(arg2, Opcodes.REG)) < 0)
+					return;
+				if(r == 6 && r2 == 6) {
+					error("Invalid register! MOV M, M is HLT");
+					return;
+				}
+				write8(base | r << 3 | r2);
 				return;
-			case 0x01:
-				write8(0xCF);
+			case Opcodes.MVI:
+				if((r = register(arg1, Opcodes.REG)) < 0 || !validOperand(arg2))
+					return;
+				write8(base | r << 3);
+				emit8(arg2);
 				return;
-			case 0x02:
-				write8(0xD7);
+			case Opcodes.PAIR:
+				if((r = register(arg1, Opcodes.PAIRS)) < 0)
+					return;
+				write8(base | r << 4);
 				return;
-			case 0x03:
-				write8(0xDF);
+			case Opcodes.LXI:
+				if((r = register(arg1, Opcodes.PAIRS)) < 0 || !validOperand(arg2))
+					return;
+				write8(base | r << 4);
+				emit16(arg2);
 				return;
-			case 0x04:
-				write8(0xE7);
+			case Opcodes.STACK:
+				if((r = register(arg1, Opcodes.STACKS)) < 0)
+					return;
+				write8(base | r << 4);
 				return;
-			case 0x05:
-				write8(0xEF);
+			case Opcodes.INDEX:
+				if((r = register(arg1, Opcodes.INDEXES)) < 0)
+					return;
+				write8(base | r << 4);
 				return;
-			case 0x06:
-				write8(0xF7);
+			case Opcodes.RST:
+				rst(arg1, base);
 				return;
-			case 0x07:
-				write8(0xFF);
+			case Opcodes.ORG:
+				org(arg1);
 				return;
 			default:
-				error("Invalid value! use 0 - 7 !");
+				error("Invalid instruction!");
 				return;
 		}
 	}
 	
-	private void cm(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
-			return;
+	/*
+	 * Returns the register code of arg in the given table,
+	 * or -1 after reporting the error
+	 */
+	private int register(int arg, byte[] table) {
+		if(arg < 0 || trees.kind(arg) != AType.REGISTER) {
+			error("Register expected!");
+			return -1;
 		}
 		
-		int addr = extractValue(m.getArg1());
+		int code = table[trees.value(arg)];
 		
-		write8(0xFC);
-		write16(addr);
+		if(code < 0)
+			error("Invalid register!");
+		return code;
 	}
 	
-	private void cpe(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
-			return;
+	private boolean validOperand(int arg) {
+		if(arg < 0 || !validLiteral(arg)) {
+			error("Valid value expected!");
+			return false;
 		}
-		
-		int addr = extractValue(m.getArg1());
-		
-		write8(0xEC);
-		write16(addr);
+		return true;
 	}
 	
-	private void cc(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
+	private void rst(int arg, int base) {
+		if(!validOperand(arg))
 			return;
-		}
 		
-		int addr = extractValue(m.getArg1());
+		unresolved = false;
+		unsettled  = false;
 		
-		write8(0xDC);
-		write16(addr);
-	}
-	
-	private void cz(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
+		int value = extractValue(arg);
+		
+		if(unresolved || unsettled) {
+			error("RST vector must be known at this point!");
 			return;
 		}
 		
-		int addr = extractValue(m.getArg1());
-		
-		write8(0xCC);
-		write16(addr);
-	}
-	
-	private void ori(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
+		if(value < 0 || value > 7) {
+			error("Invalid value! use 0 - 7 !");
 			return;
 		}
 		
-		int value = extractValue(m.getArg1());
-		
-		write8(0xF6);
-		write8(value);
+		write8(base | value << 3);
 	}
 	
-	private void ani(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
+	private void org(int arg) {
+		if(arg < 0 || !validLiteral(arg)) {
+			error("Valid literal expected at ORG declarative!");
 			return;
 		}
 		
-		int value = extractValue(m.getArg1());
+		unresolved = false;
+		unsettled  = false;
 		
-		write8(0xE6);
-		write8(value);
-	}
-	
-	private void sui(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
-			return;
-		}
+		origin = extractValue(arg);
 		
-		int value = extractValue(m.getArg1());
+		// the labels after it are placed with this origin until settle()
+		guessing = unresolved || unsettled;
 		
-		write8(0xD6);
-		write8(value);
+		if(guessing)
+			layout.addSegment(arg, origin, line());
 	}
 	
-	private void adi(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
-			return;
-		}
+	/*
+	 * The constant elements were packed by the parser and are copied
+	 * in one go, the others are evaluated into their place after it
+	 */
+	private void handleData(int decl, int width) {
+		byte[] data  = trees.data(decl);
+		int    start = pc;
 		
-		int value = extractValue(m.getArg1());
+		ensureCapacity(pc + data.length);
+		System.arraycopy(data, 0, program, pc, data.length);
+		pc += data.length;
 		
-		write8(0xC6);
-		write8(value);
+		for(int k = 0; k < trees.count(decl); k++) {
+			int i = trees.element(decl, k);
+			
+			if(i < 0) {
+				error(width == 1 ? "error at byte declaration!" : "error at word declaration!");
+				return;
+			}
+			if(!validLiteral(i)) {
+				error("Invalid value on byte declaration!");
+				continue;
+			}
+			
+			place(start + trees.offset(decl, k), i, width);
+		}
 	}
 	
-	private void cplus(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
+	/*
+	 * The file is mapped and copied into the image in one go,
+	 * its bytes never go through the lexer or the parser
+	 */
+	private void handleIncbin(int node) {
+		ByteBuffer file;
+		
+		try {
+			file = Preprocessor.map(includes.resolve(trees.string(node)));
+		}
+		catch(IOException e) {
+			error("Cannot read \"" + trees.string(node) + "\"!");
 			return;
 		}
 		
-		int addr = extractValue(m.getArg1());
+		int offset = trees.left(node) < 0 ? 0 : constant(trees.left(node), "INCBIN offset");
 		
-		write8(0xF4);
-		write16(addr);
-	}
-	
-	private void cpo(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
+		if(offset < 0)
 			return;
-		}
 		
-		int addr = extractValue(m.getArg1());
+		int length = trees.right(node) < 0 ? Math.max(file.limit() - offset, 0) : constant(trees.right(node), "INCBIN length");
 		
-		write8(0xE4);
-		write16(addr);
-	}
-	
-	private void cnc(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
+		if(length < 0)
 			return;
-		}
 		
-		int addr = extractValue(m.getArg1());
-		
-		write8(0xD4);
-		write16(addr);
-	}
-	
-	private void cnz(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
+		if((long)offset + length > file.limit()) {
+			error("INCBIN range is outside of \"" + trees.string(node) + "\"!");
 			return;
 		}
 		
-		int addr = extractValue(m.getArg1());
-		
-		write8(0xC4);
-		write16(addr);
+		ensureCapacity(pc + length);
+		file.get(offset, program, pc, length);
+		pc += length;
 	}
 	
-	private void in(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid value expected!");
+	/*
+	 * DS only moves pc: the space is zero when bytes follow it
+	 * and is never written when nothing does. FILL is a single
+	 * Arrays.fill, whatever the count
+	 */
+	private void handleReserve(int node) {
+		String what  = trees.kind(node) == AType.DS ? "DS size" : "FILL size";
+		int    count = constant(trees.left(node), what);
+		
+		if(count < 0)
 			return;
-		}
 		
-		write8(0xDB);
-		write8(extractValue(m.getArg1()));
-	}
-	
-	private void out(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid value expected!");
+		if(count > 0x10000) {
+			error("Invalid value! " + what + " is bigger than 64 KiB");
 			return;
 		}
 		
-		write8(0xD3);
-		write8(extractValue(m.getArg1()));
-	}
-	
-	private void jp(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
+		if(trees.kind(node) == AType.DS) {
+			pc += count;
 			return;
 		}
 		
-		int addr = extractValue(m.getArg1());
+		int arg = trees.right(node);
 		
-		write8(0xF2);
-		write16(addr);
-	}
-	
-	private void jpo(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
+		if(!validOperand(arg))
 			return;
-		}
 		
-		int addr = extractValue(m.getArg1());
+		unresolved = false;
+		unsettled  = false;
 		
-		write8(0xE2);
-		write16(addr);
-	}
-	
-	private void jnc(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
+		int value = extractValue(arg);
+		
+		if(unresolved || unsettled) {
+			error("FILL value must be known at this point!");
 			return;
 		}
 		
-		int addr = extractValue(m.getArg1());
-		
-		write8(0xD2);
-		write16(addr);
+		check8(value, line());
+		ensureCapacity(pc + count);
+		Arrays.fill(program, pc, pc + count, (byte)value);
+		pc += count;
 	}
 	
-	private void jnz(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
-			return;
-		}
+	/*
+	 * A value that must be known where it is used,
+	 * -1 after reporting it is not or is negative
+	 */
+	private int constant(int arg, String what) {
+		if(!validOperand(arg))
+			return -1;
 		
-		int addr = extractValue(m.getArg1());
+		unresolved = false;
+		unsettled  = false;
 		
-		write8(0xC2);
-		write16(addr);
-	}
-	
-	private void push(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected");
-			return;
-		}
+		int value = extractValue(arg);
 		
-		Register r = (Register)m.getArg1();
+		if(unresolved || unsettled) {
+			error(what + " must be known at this point!");
+			return -1;
+		}
 		
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0xC5);
-				return;
-			case TokenType.TK_D:
-				write8(0xD5);
-				return;
-			case TokenType.TK_H:
-				write8(0xE5);
-				return;
-			case TokenType.TK_PSW:
-				write8(0xF5);
-				return;
-			default:
-				error("Invalid register");
-				return;
+		if(value < 0) {
+			error("Invalid value! " + what + " cannot be negative");
+			return -1;
 		}
+		return value;
 	}
 	
-	private void pop(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected");
+	private void handleLabel() {
+		define(trees.value(peek()));
+	}
+	
+	private void handleIDasLB() {
+		define(trees.value(peek()));
+	}
+	
+	private void define(int symbol) {
+		if(equates[symbol] >= 0) {
+			error("Symbol " + symbols.getName(symbol) + " is already defined by EQU!");
 			return;
 		}
 		
-		Register r = (Register)m.getArg1();
-		
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0xC1);
-				return;
-			case TokenType.TK_D:
-				write8(0xD1);
-				return;
-			case TokenType.TK_H:
-				write8(0xE1);
-				return;
-			case TokenType.TK_PSW:
-				write8(0xF1);
-				return;
-			default:
-				error("Invalid register");
-				return;
+		if(guessing) {
+			moving[symbol] = true;
+			layout.addLabel(symbol, pc);
 		}
+		
+		symbols.setValue(symbol, pc + origin);
 	}
 	
-	private void jm(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
-			return;
-		}
+	public void WriteToFile(String path) throws IOException {
+		StringBuilder name = new StringBuilder(getFilename(path));
 		
-		int addr = extractValue(m.getArg1());
+		name.append(".bin");
 		
-		write8(0xFA);
-		write16(addr);
+		try(FileChannel fc = FileChannel.open(Path.of(name.toString()), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = ByteBuffer.wrap(program, 0, end);
+			
+			while(buf.hasRemaining())
+				fc.write(buf);
+		}
 	}
 	
-	private void jpe(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
-			return;
+	/*
+	 * The returned array is the backing image itself,
+	 * only the first getSize() bytes are meaningful
+	 */
+	public byte[] getProgram(){
+		return program;
+	}
+	
+	public int getSize() {
+		return end;
+	}
+	
+	public boolean getError() {
+		return error;
+	}
+	
+	/*
+	 * Node of the current statement, -1 where the parser failed
+	 */
+	private int peek() {
+		return trees.getStatement(pos);
+	}
+	
+	private void next() {
+		pos++;
+	}
+	
+	private void write8(int value) {
+		ensureCapacity(pc + 1);
+		program[pc++] = (byte)value;
+	}
+	
+	private void emit8(int expr) {
+		ensureCapacity(pc + 1);
+		place(pc, expr, 1);
+		pc += 1;
+	}
+	
+	private void emit16(int expr) {
+		ensureCapacity(pc + 2);
+		place(pc, expr, 2);
+		pc += 2;
+	}
+	
+	/*
+	 * Writes the value of expr at offset, or leaves a zero
+	 * placeholder and a fixup when it is not final yet
+	 */
+	private void place(int offset, int expr, int width) {
+		unresolved = false;
+		unsettled  = false;
+		
+		int value = extractValue(expr);
+		
+		if(unresolved || unsettled) {
+			fixups.add(new Fixup(offset, expr, width, line(), captureSets(expr)));
+			value = 0;
+		}
+		else if(width == 1) {
+			check8(value, line());
 		}
 		
-		int addr = extractValue(m.getArg1());
+		program[offset] = (byte)value;
 		
-		write8(0xEA);
-		write16(addr);
+		if(width == 2)
+			program[offset + 1] = (byte)((value >> 8) & 0xFF);
 	}
 	
-	private void jc(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
-			return;
-		}
+	/*
+	 * (symbol, value) pairs of the SET symbols the expression
+	 * reads, null when there are none
+	 */
+	private int[] captureSets(int expr) {
+		int[] pairs = null;
+		int   count = 0;
 		
-		int addr = extractValue(m.getArg1());
+		for(int node = trees.first(expr); node <= expr; node++) {
+			if(trees.kind(node) != AType.IDENTIFIER && trees.kind(node) != AType.OFFSET)
+				continue;
+			
+			int symbol = trees.value(node);
+			
+			if(!sets[symbol] || !symbols.isResolved(symbol) || captured(pairs, count, symbol))
+				continue;
+			
+			if(pairs == null)
+				pairs = new int[4];
+			else if(count == pairs.length)
+				pairs = Arrays.copyOf(pairs, count << 1);
+			
+			pairs[count++] = symbol;
+			pairs[count++] = symbols.getValue(symbol);
+		}
 		
-		write8(0xDA);
-		write16(addr);
+		return pairs == null ? null : Arrays.copyOf(pairs, count);
 	}
 	
-	private void jz(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
-			return;
+	private boolean captured(int[] pairs, int count, int symbol) {
+		for(int i = 0; i < count; i += 2) {
+			if(pairs[i] == symbol)
+				return true;
 		}
-		
-		int addr = extractValue(m.getArg1());
-		
-		write8(0xCA);
-		write16(addr);
+		return false;
 	}
 	
-	private void cmp(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected");
+	/*
+	 * Exchanges the values of the symbols with the captured
+	 * ones, a second call puts them back
+	 */
+	private void swapSets(int[] pairs) {
+		if(pairs == null)
 			return;
-		}
-		
-		Register r = (Register)m.getArg1();
 		
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0xB8);
-				return;
-			case TokenType.TK_C:
-				write8(0xB9);
-				return;
-			case TokenType.TK_D:
-				write8(0xBA);
-				return;
-			case TokenType.TK_E:
-				write8(0xBB);
-				return;
-			case TokenType.TK_H:
-				write8(0xBC);
-				return;
-			case TokenType.TK_L:
-				write8(0xBD);
-				return;
-			case TokenType.TK_M:
-				write8(0xBE);
-				return;
-			case TokenType.TK_A:
-				write8(0xBF);
-				return;
-			default:
-				error("Invalid register");
-				return;
+		for(int i = 0; i < pairs.length; i += 2) {
+			int value = symbols.getValue(pairs[i]);
+			
+			symbols.setValue(pairs[i], pairs[i + 1]);
+			pairs[i + 1] = value;
 		}
 	}
 	
-	private void ora(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected");
-			return;
-		}
-		
-		Register r = (Register)m.getArg1();
+	private void check8(int value, int line) {
+		if(value > 0xFF)
+			warning("Value " + value + " is bigger than 1 byte !", line);
+	}
+	
+	/*
+	 * Every write asks for its space here first, so end is the
+	 * last byte written and a trailing DS adds nothing
+	 */
+	private void ensureCapacity(int size) {
+		end = Math.max(end, size);
 		
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0xB0);
-				return;
-			case TokenType.TK_C:
-				write8(0xB1);
-				return;
-			case TokenType.TK_D:
-				write8(0xB2);
-				return;
-			case TokenType.TK_E:
-				write8(0xB3);
-				return;
-			case TokenType.TK_H:
-				write8(0xB4);
-				return;
-			case TokenType.TK_L:
-				write8(0xB5);
-				return;
-			case TokenType.TK_M:
-				write8(0xB6);
-				return;
-			case TokenType.TK_A:
-				write8(0xB7);
-				return;
-			default:
-				error("Invalid register");
-				return;
-		}
-	}
-	
-	private void xra(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected");
-			return;
-		}
-		
-		Register r = (Register)m.getArg1();
-		
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0xA8);
-				return;
-			case TokenType.TK_C:
-				write8(0xA9);
-				return;
-			case TokenType.TK_D:
-				write8(0xAA);
-				return;
-			case TokenType.TK_E:
-				write8(0xAB);
-				return;
-			case TokenType.TK_H:
-				write8(0xAC);
-				return;
-			case TokenType.TK_L:
-				write8(0xAD);
-				return;
-			case TokenType.TK_M:
-				write8(0xAE);
-				return;
-			case TokenType.TK_A:
-				write8(0xAF);
-				return;
-			default:
-				error("Invalid register");
-				return;
-		}
-	}
-	
-	private void ana(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected");
+		if(size <= program.length)
 			return;
-		}
-		
-		Register r = (Register)m.getArg1();
-		
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0xA0);
-				return;
-			case TokenType.TK_C:
-				write8(0xA1);
-				return;
-			case TokenType.TK_D:
-				write8(0xA2);
-				return;
-			case TokenType.TK_E:
-				write8(0xA3);
-				return;
-			case TokenType.TK_H:
-				write8(0xA4);
-				return;
-			case TokenType.TK_L:
-				write8(0xA5);
-				return;
-			case TokenType.TK_M:
-				write8(0xA6);
-				return;
-			case TokenType.TK_A:
-				write8(0xA7);
-				return;
-			default:
-				error("Invalid register");
-				return;
-		}
-	}
-	
-	private void sbb(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected");
-			return;
-		}
-		
-		Register r = (Register)m.getArg1();
-		
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x98);
-				return;
-			case TokenType.TK_C:
-				write8(0x99);
-				return;
-			case TokenType.TK_D:
-				write8(0x9A);
-				return;
-			case TokenType.TK_E:
-				write8(0x9B);
-				return;
-			case TokenType.TK_H:
-				write8(0x9C);
-				return;
-			case TokenType.TK_L:
-				write8(0x9D);
-				return;
-			case TokenType.TK_M:
-				write8(0x9E);
-				return;
-			case TokenType.TK_A:
-				write8(0x9F);
-				return;
-			default:
-				error("Invalid register");
-				return;
-		}
-	}
-	
-	private void adc(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected");
-			return;
-		}
-		
-		Register r = (Register)m.getArg1();
-		
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x88);
-				return;
-			case TokenType.TK_C:
-				write8(0x89);
-				return;
-			case TokenType.TK_D:
-				write8(0x8A);
-				return;
-			case TokenType.TK_E:
-				write8(0x8B);
-				return;
-			case TokenType.TK_H:
-				write8(0x8C);
-				return;
-			case TokenType.TK_L:
-				write8(0x8D);
-				return;
-			case TokenType.TK_M:
-				write8(0x8E);
-				return;
-			case TokenType.TK_A:
-				write8(0x8F);
-				return;
-			default:
-				error("Invalid register");
-				return;
-		}
-	}
-	
-	private void sub(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected");
-			return;
-		}
-		
-		Register r = (Register)m.getArg1();
-		
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x90);
-				return;
-			case TokenType.TK_C:
-				write8(0x91);
-				return;
-			case TokenType.TK_D:
-				write8(0x92);
-				return;
-			case TokenType.TK_E:
-				write8(0x93);
-				return;
-			case TokenType.TK_H:
-				write8(0x94);
-				return;
-			case TokenType.TK_L:
-				write8(0x95);
-				return;
-			case TokenType.TK_M:
-				write8(0x96);
-				return;
-			case TokenType.TK_A:
-				write8(0x97);
-				return;
-			default:
-				error("Invalid register");
-				return;
-		}
-	}
-	
-	private void add(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected");
-			return;
-		}
-		
-		Register r = (Register)m.getArg1();
-		
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x80);
-				return;
-			case TokenType.TK_C:
-				write8(0x81);
-				return;
-			case TokenType.TK_D:
-				write8(0x82);
-				return;
-			case TokenType.TK_E:
-				write8(0x83);
-				return;
-			case TokenType.TK_H:
-				write8(0x84);
-				return;
-			case TokenType.TK_L:
-				write8(0x85);
-				return;
-			case TokenType.TK_M:
-				write8(0x86);
-				return;
-			case TokenType.TK_A:
-				write8(0x87);
-				return;
-			default:
-				error("Invalid register");
-				return;
-		}
-	}
-	
-	private void mov(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected!");
-			return;
-		}
-		
-		Register r = (Register)m.getArg1();
-		Register r2= (Register)m.getArg2();
-		
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				mov_b(r2);
-				return;
-			case TokenType.TK_C:
-				mov_c(r2);
-				return;
-			case TokenType.TK_D:
-				mov_d(r2);
-				return;
-			case TokenType.TK_E:
-				mov_e(r2);
-				return;
-			case TokenType.TK_H:
-				mov_h(r2);
-				return;
-			case TokenType.TK_L:
-				mov_l(r2);
-				return;
-			case TokenType.TK_M:
-				mov_m(r2);
-				return;
-			case TokenType.TK_A:
-				mov_a(r2);
-				return;
-			default:
-				error("Invalid register");
-				return;
-		}
-	}
-	
-	private void mov_a(Register r) {
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x78);
-				return;
-			case TokenType.TK_C:
-				write8(0x79);
-				return;
-			case TokenType.TK_D:
-				write8(0x7A);
-				return;
-			case TokenType.TK_E:
-				write8(0x7B);
-				return;
-			case TokenType.TK_H:
-				write8(0x7C);
-				return;
-			case TokenType.TK_L:
-				write8(0x7D);
-				return;
-			case TokenType.TK_M:
-				write8(0x7E);
-				return;
-			case TokenType.TK_A:
-				write8(0x7F);
-				return;
-			default:
-				error("invalid register");
-				break;
-		}
+		program = Arrays.copyOf(program, Math.max(size, program.length << 1));
 	}
 	
-	private void mov_m(Register r) {
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x70);
-				return;
-			case TokenType.TK_C:
-				write8(0x71);
-				return;
-			case TokenType.TK_D:
-				write8(0x72);
-				return;
-			case TokenType.TK_E:
-				write8(0x73);
-				return;
-			case TokenType.TK_H:
-				write8(0x74);
-				return;
-			case TokenType.TK_L:
-				write8(0x75);
-				return;
-			case TokenType.TK_A:
-				write8(0x77);
-				return;
-			default:
-				error("invalid register");
-				break;
-		}
-	}
-	
-	private void mov_c(Register r) {
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x48);
-				return;
-			case TokenType.TK_C:
-				write8(0x49);
-				return;
-			case TokenType.TK_D:
-				write8(0x4A);
-				return;
-			case TokenType.TK_E:
-				write8(0x4B);
-				return;
-			case TokenType.TK_H:
-				write8(0x4C);
-				return;
-			case TokenType.TK_L:
-				write8(0x4D);
-				return;
-			case TokenType.TK_M:
-				write8(0x4E);
-				return;
-			case TokenType.TK_A:
-				write8(0x4F);
-				return;
-			default:
-				error("invalid register");
-				break;
-		}
-	}
-	
-	private void mov_d(Register r) {
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x50);
-				return;
-			case TokenType.TK_C:
-				write8(0x51);
-				return;
-			case TokenType.TK_D:
-				write8(0x52);
-				return;
-			case TokenType.TK_E:
-				write8(0x53);
-				return;
-			case TokenType.TK_H:
-				write8(0x54);
-				return;
-			case TokenType.TK_L:
-				write8(0x55);
-				return;
-			case TokenType.TK_M:
-				write8(0x56);
-				return;
-			case TokenType.TK_A:
-				write8(0x57);
-				return;
-			default:
-				error("invalid register");
-				break;
-		}
-	}
-	
-	private void mov_e(Register r) {
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x58);
-				return;
-			case TokenType.TK_C:
-				write8(0x59);
-				return;
-			case TokenType.TK_D:
-				write8(0x5A);
-				return;
-			case TokenType.TK_E:
-				write8(0x5B);
-				return;
-			case TokenType.TK_H:
-				write8(0x5C);
-				return;
-			case TokenType.TK_L:
-				write8(0x5D);
-				return;
-			case TokenType.TK_M:
-				write8(0x5E);
-				return;
-			case TokenType.TK_A:
-				write8(0x5F);
-				return;
-			default:
-				error("invalid register");
-				break;
-		}
-	}
-	
-	private void mov_h(Register r) {
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x60);
-				return;
-			case TokenType.TK_C:
-				write8(0x61);
-				return;
-			case TokenType.TK_D:
-				write8(0x62);
-				return;
-			case TokenType.TK_E:
-				write8(0x63);
-				return;
-			case TokenType.TK_H:
-				write8(0x64);
-				return;
-			case TokenType.TK_L:
-				write8(0x65);
-				return;
-			case TokenType.TK_M:
-				write8(0x66);
-				return;
-			case TokenType.TK_A:
-				write8(0x67);
-				return;
-			default:
-				error("invalid register");
-				break;
-		}
-	}
-	
-	private void mov_l(Register r) {
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x68);
-				return;
-			case TokenType.TK_C:
-				write8(0x69);
-				return;
-			case TokenType.TK_D:
-				write8(0x6A);
-				return;
-			case TokenType.TK_E:
-				write8(0x6B);
-				return;
-			case TokenType.TK_H:
-				write8(0x6C);
-				return;
-			case TokenType.TK_L:
-				write8(0x6D);
-				return;
-			case TokenType.TK_M:
-				write8(0x6E);
-				return;
-			case TokenType.TK_A:
-				write8(0x6F);
-				return;
-			default:
-				error("invalid register");
-				break;
-		}
-	}
-	
-	private void mov_b(Register r) {
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x40);
-				return;
-			case TokenType.TK_C:
-				write8(0x41);
-				return;
-			case TokenType.TK_D:
-				write8(0x42);
-				return;
-			case TokenType.TK_E:
-				write8(0x43);
-				return;
-			case TokenType.TK_H:
-				write8(0x44);
-				return;
-			case TokenType.TK_L:
-				write8(0x45);
-				return;
-			case TokenType.TK_M:
-				write8(0x46);
-				return;
-			case TokenType.TK_A:
-				write8(0x47);
-				return;
-			default:
-				error("invalid register");
-				break;
-		}
+	private boolean endStream() {
+		return pos >= trees.getStatementCount();
 	}
 	
-	private void dad(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected!");
-			return;
-		}
-		
-		Register r = (Register)m.getArg1();
-		
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x09);
-				break;
-			case TokenType.TK_D:
-				write8(0x19);
-				break;
-			case TokenType.TK_H:
-				write8(0x29);
-				break;
-			case TokenType.TK_SP:
-				write8(0x39);
-				break;
-			default:
-				error("Invalid register! use b, d, h or sp!");
-				return;
-		}
+	/*
+	 * Line errors are reported at: the statement being generated,
+	 * or the fixup, ORG or EQU being evaluated again
+	 */
+	private int line() {
+		return line;
 	}
 	
-	private void dcx(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected");
-			return;
-		}
-		
-		Register r = (Register)m.getArg1();
-		
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x0B);
-				return;
-			case TokenType.TK_D:
-				write8(0x1B);
-				return;
-			case TokenType.TK_H:
-				write8(0x2B);
-				return;
-			case TokenType.TK_SP:
-				write8(0x3B);
-				return;
-			default:
-				error("Invalid register");
-				return;
-		}
-	}
-	
-	private void ldax(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected!");
-			return;
-		}
-		
-		Register r = (Register)m.getArg1();
-		
-		if(r.getRG() == TokenType.TK_B) {
-			write8(0x0A);
-			return;
-		}
-		
-		if(r.getRG() == TokenType.TK_D) {
-			write8(0x1A);
-			return;
-		}
-		
-		error("Invalid register at ldax instruction! use b or d!");
+	private void error(String args) {
+		error(args, line());
 	}
 	
-	private void dcr(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected");
-			return;
-		}
-		
-		Register r = (Register)m.getArg1();
-		
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x05);
-				return;
-			case TokenType.TK_C:
-				write8(0x0D);
-				return;
-			case TokenType.TK_D:
-				write8(0x15);
-				return;
-			case TokenType.TK_E:
-				write8(0x1C);
-				return;
-			case TokenType.TK_H:
-				write8(0x25);
-				return;
-			case TokenType.TK_L:
-				write8(0x2C);
-				return;
-			case TokenType.TK_SP:
-				write8(0x35);
-				return;
-			case TokenType.TK_A:
-				write8(0x3C);
-				return;
-			default:
-				error("Invalid register");
-				return;
-		}
+	private void error(String args, int line) {
+		System.out.print("Error(" + line + "): " + args);
+		System.out.print("\n");
+		error = true;
+		return;
 	}
 	
-	private void inr(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected");
-			return;
-		}
-		
-		Register r = (Register)m.getArg1();
-		
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x04);
-				return;
-			case TokenType.TK_C:
-				write8(0x0C);
-				return;
-			case TokenType.TK_D:
-				write8(0x14);
-				return;
-			case TokenType.TK_E:
-				write8(0x1C);
-				return;
-			case TokenType.TK_H:
-				write8(0x24);
-				return;
-			case TokenType.TK_L:
-				write8(0x2C);
-				return;
-			case TokenType.TK_SP:
-				write8(0x34);
-				return;
-			case TokenType.TK_A:
-				write8(0x3C);
-				return;
-			default:
-				error("Invalid register");
-				return;
-		}
+	private void warning(String args, int line) {
+		System.out.print("Warning(" + line + "): " + args);
+		System.out.print("\n");
+		return;
 	}
 	
-	private void inx(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected");
-			return;
-		}
-		
-		Register r = (Register)m.getArg1();
-		
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x03);
-				return;
-			case TokenType.TK_D:
-				write8(0x13);
-				return;
-			case TokenType.TK_H:
-				write8(0x23);
-				return;
-			case TokenType.TK_SP:
-				write8(0x33);
-				return;
+	private int extractValue(int arg) {
+		switch(trees.kind(arg)) {
+			case AType.LITERAL:
+				return trees.value(arg);
+			case AType.IDENTIFIER:
+				return symbol(trees.value(arg));
+			case AType.OFFSET:
+				return symbol(trees.value(arg)) + trees.right(arg);
+			case AType.BINARYEXPR:
+			case AType.UNARYEXPR:
+				return calculate(arg);
+				
 			default:
-				error("Invalid register");
-				return;
-		}
-	}
-	
-	private void shld(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid value expected!");
-			return;
-		}
-		
-		write8(0x22);
-		write16(extractValue(m.getArg1()));
-	}
-	
-	private void sta(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid value expected!");
-			return;
-		}
-		
-		write8(0x32);
-		write16(extractValue(m.getArg1()));
-	}
-	
-	private void stax(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected!");
-			return;
-		}
-		
-		Register r = (Register)m.getArg1();
-		
-		if(r.getRG() == TokenType.TK_B) {
-			write8(0x02);
-			return;
-		}
-		
-		if(r.getRG() == TokenType.TK_D) {
-			write8(0x12);
-			return;
+				error("Invalid value!");
+				return -1;
 		}
-		
-		error("Invalid register at stax instruction! use b or d!");
 	}
 	
-	private void lxi(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Register expected!");
-			return;
-		}
+	private int symbol(int symbol) {
+		int value = symbols.getValue(symbol);
 		
-		Register r = (Register)m.getArg1();
+		if(value == SymbolTable.UNRESOLVED && equates[symbol] >= 0)
+			value = resolve(symbol);
 		
-		if(!validLiteral(m.getArg2())) {
-			error("Valid value expected!");
-			return;
-		}
+		if(moving[symbol])
+			unsettled = true;
 		
-		int value = extractValue(m.getArg2());
-		
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x01);
-				break;
-			case TokenType.TK_D:
-				write8(0x11);
-				break;
-			case TokenType.TK_H:
-				write8(0x21);
-				break;
-			case TokenType.TK_SP:
-				write8(0x31);
-				break;
-			default:
-				error("Invalid register! use b, d, h or sp!");
-				return;
-		}
-		
-		write16(value);
-	}
-	
-	private void jmp(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid address expected!");
-			return;
-		}
-		
-		int addr = extractValue(m.getArg1());
-		
-		write8(0xC3);
-		write16(addr);
+		if(value != SymbolTable.UNRESOLVED)
+			return value;
+		unresolved = true;
+		return 0;
 	}
 	
-	private void org(Mnemonic m) {
-		if(!validLiteral(m.getArg1())) {
-			error("Valid literal expected at ORG declarative!");
-			return;
-		}
+	/*
+	 * The nodes of an expression are already in postfix order,
+	 * so it is evaluated left to right over its range with an
+	 * operand stack. Loading an EQU may evaluate its definition
+	 * on top of the current operands, hence the shared top
+	 */
+	private int calculate(int expr) {
+		int base = top;
 		
-		origin = extractValue(m.getArg1());
-	}
-	
-	private void handleByte(ByteDecl decl) {
-		for(var i : decl.getBytes()) {
-			if(i == null) {
-				error("error at byte declaration!");
-				return;
-			}
-			if(i.getType() == AType.STRING) {
-				for(int j = 0; j < ((StringTree)i).getID().length(); j++)
-					write8((int)((StringTree)i).getID().charAt(j));
-				continue;
-			}
-			if(!validLiteral(i)) {
-				error("Invalid value on byte declaration!");
-				continue;
-			}
+		for(int node = trees.first(expr); node <= expr; node++) {
+			if(top + 1 >= stack.length)
+				stack = Arrays.copyOf(stack, stack.length << 1);
 			
-			write8(extractValue(i));
-		}
-	}
-	
-	private void handleWord(WordDecl decl) {
-		for(var i : decl.getWords()) {
-			if(i == null) {
-				error("error at word declaration!");
-				return;
-			}
-			if(i.getType() == AType.STRING) {
-				for(int j = 0; j < ((StringTree)i).getID().length(); j++)
-					write16((int)((StringTree)i).getID().charAt(j));
-				continue;
-			}
-			if(!validLiteral(i)) {
-				error("Invalid value on byte declaration!");
-				continue;
+			switch(trees.kind(node)) {
+				case AType.LITERAL:
+					stack[top++] = trees.value(node);
+					break;
+				case AType.IDENTIFIER:
+					int value = symbol(trees.value(node));
+					
+					stack[top++] = value;
+					break;
+				case AType.OFFSET:
+					int offset = symbol(trees.value(node)) + trees.right(node);
+					
+					stack[top++] = offset;
+					break;
+				case AType.UNARYEXPR:
+					stack[top - 1] = UnaryExpr.apply(TYPES[trees.value(node)], stack[top - 1]);
+					break;
+				case AType.BINARYEXPR:
+					top--;
+					stack[top - 1] = binary(TYPES[trees.value(node)], stack[top - 1], stack[top]);
+					break;
+				default:
+					error("Invalid value!");
+					stack[top++] = -1;
+					break;
 			}
-			
-			write16(extractValue(i));
-		}
-	}
-	
-	private void handleLabel() {
-		Label lb = (Label)peek();
-		labels.put(lb.getID(), pc + origin);
-	}
-	
-	private void handleIDasLB() {
-		Identifier id = (Identifier)peek();
-		
-		labels.put(id.getID(), pc + origin);
-	}
-	
-	public void WriteToFile(String path) throws IOException {
-		StringBuilder name = new StringBuilder(getFilename(path));
-		
-		name.append(".bin");
-		
-		File file = new File(name.toString());
-		
-		FileOutputStream fw = new FileOutputStream(file);
-		
-		for(var x : program) {
-			fw.write(new byte[] {x});
-		}
-		
-		fw.close();
-	}
-	
-	public List<Byte> getProgram(){
-		return program;
-	}
-	
-	public boolean getError() {
-		return error;
-	}
-	
-	private void mvi(Mnemonic m) {
-		if(m.getArg1().getType() != AType.REGISTER) {
-			error("Invalid left hand side in MVI instruction! Register expected");
-			return;
-		}
-		
-		Register r = (Register)m.getArg1();
-		
-		if(!validLiteral(m.getArg2())) {
-			error("Invalid right hand side in MVI instruction! literal expected");
-			return;
 		}
 		
-		int value = extractValue(m.getArg2());
-		
-		if(value > 0xFF) {
-			warning("Value " + value + " is bigger than 1 byte !");
-			value &= 0xFF;
-		}
+		top = base;
 		
-		switch(r.getRG()) {
-			case TokenType.TK_B:
-				write8(0x06);
-				write8(value);
-				return;
-			case TokenType.TK_D:
-				write8(0x16);
-				write8(value);
-				return;
-			case TokenType.TK_H:
-				write8(0x26);
-				write8(value);
-				return;
-			case TokenType.TK_M:
-				write8(0x36);
-				write8(value);
-				return;
-			case TokenType.TK_C:
-				write8(0x0E);
-				write8(value);
-				return;
-			case TokenType.TK_E:
-				write8(0x1E);
-				write8(value);
-				return;
-			case TokenType.TK_L:
-				write8(0x2E);
-				write8(value);
-				return;
-			case TokenType.TK_A:
-				write8(0x3E);
-				write8(value);
-				return;
-			default:
-				error("Invalid register");
-				return;
-		}
-	}
-	
-	private AST peek() {
-		return trees.get(pos);
-	}
-	
-	private void next() {
-		pos++;
-	}
-	
-	private void write8(int value) {
-		program.add((byte)value);
-		pc++;
-	}
-	
-	private void write16(int value) {
-		program.add((byte)(value & 0xFF));
-		program.add((byte)((value >> 8) & 0xFF));
-		pc += 2;
-	}
-	
-	private boolean endStream() {
-		return pos >= trees.size();
-	}
-	
-	private void error(String args) {
-		System.out.print("Error(" + peek().getLine() + "): " + args);
-		System.out.print("\n");
-		error = true;
-		return;
+		return stack[base];
 	}
 	
-	private void warning(String args) {
-		System.out.print("Warning(" + peek().getLine() + "): " + args);
-		System.out.print("\n");
-		return;
-	}
-	
-	private int extractValue(AST arg) {
-		switch(arg.getType()) {
-			case AType.LITERAL:
-				return ((Literal)arg).getValue();
-			case AType.IDENTIFIER:
-				Identifier i = (Identifier)arg;
-				
-				if(labels.containsKey(i.getID())) {
-					Object o = labels.get(i.getID());
-					
-					if(o == null)
-						return -1;
-					return (int)o;
-				}
-				hasReference = true;
-				return -1;
-			case AType.BINARYEXPR:
-				return calculate((BinaryExpr)arg);
-				
-			default:
-				error("Invalid value!");
-				return -1;
-		}
-	}
-	
-	private int calculate(BinaryExpr bin) {
-		
-		int l = extractValue(bin.getLeft());
-		int r = extractValue(bin.getRight());
-		
-		switch(bin.getOP()) {
-			case TokenType.TK_PLUS:
-				return l + r;
-			case TokenType.TK_MINUS:
-				return l - r;
-			case TokenType.TK_MUL:
-				return l * r;
-			case TokenType.TK_DIV:
-				if(r == 0) {
-					error("Cannot divide by zero!");
-					return -1;
-				}
-				return l + r;
-			default:
-				error("Invalid operation!");
-				return -1;
+	private int binary(TokenType op, int l, int r) {
+		if(BinaryExpr.isInvalid(op, r)) {
+			if(!unresolved)
+				error(r == 0 ? "Cannot divide by zero!" : "Negative shift count!");
+			return unresolved ? 0 : -1;
 		}
+		return BinaryExpr.apply(op, l, r);
 	}
 	
-	private boolean validLiteral(AST arg) {
-		if(arg.getType() != AType.LITERAL && arg.getType() != AType.BINARYEXPR 
-		  && arg.getType() != AType.IDENTIFIER)
+	private boolean validLiteral(int arg) {
+		if(trees.kind(arg) != AType.LITERAL && trees.kind(arg) != AType.BINARYEXPR && trees.kind(arg) != AType.UNARYEXPR
+		  && trees.kind(arg) != AType.IDENTIFIER && trees.kind(arg) != AType.OFFSET)
 			return false;
 		return true;
 	}
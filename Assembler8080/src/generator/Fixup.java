@@ -0,0 +1,45 @@
+package generator;
+/*
+ * An operand that could not be evaluated when it was emitted,
+ * the placeholder at offset is patched once all labels are known.
+ * sets holds (symbol, value) pairs of the SET symbols it reads,
+ * with the values they had where it was emitted
+ */
+class Fixup {
+	private int offset;
+	private int expr;
+	private int width;
+	private int line;
+	private int[] sets;
+	
+	public Fixup(int offset, int expr, int width, int line, int[] sets) {
+		this.offset = offset;
+		this.expr   = expr;
+		this.width  = width;
+		this.line   = line;
+		this.sets   = sets;
+	}
+	
+	public int getOffset() {
+		return offset;
+	}
+	
+	public int getExpr() {
+		return expr;
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getLine() {
+		return line;
+	}
+	
+	/*
+	 * null when the operand reads no SET symbol
+	 */
+	public int[] getSets() {
+		return sets;
+	}
+}
@@ -0,0 +1,98 @@
+package generator;
+import java.util.Arrays;
+
+/********************************************
+ * Segments started by an ORG whose address *
+ * was not final when it was reached, and   *
+ * the labels placed in them. Bytes never   *
+ * move between passes, only addresses do:  *
+ * a label is its offset in the image plus  *
+ * the origin of its segment, so a new      *
+ * origin only rewrites the labels of that  *
+ * segment                                  *
+ *******************************************/
+class Layout {
+	private final int initialCapacity = 16;
+	private int[] exprs;
+	private int[] lines;
+	private int[] origins;
+	private int[] firsts;
+	private int   count;
+	private int[] symbols;
+	private int[] offsets;
+	private int   labels;
+	
+	Layout() {
+		exprs   = new int[initialCapacity];
+		lines   = new int[initialCapacity];
+		origins = new int[initialCapacity];
+		firsts  = new int[initialCapacity];
+		symbols = new int[initialCapacity];
+		offsets = new int[initialCapacity];
+	}
+	
+	void addSegment(int expr, int origin, int line) {
+		if(count == exprs.length) {
+			exprs   = Arrays.copyOf(exprs, count << 1);
+			lines   = Arrays.copyOf(lines, count << 1);
+			origins = Arrays.copyOf(origins, count << 1);
+			firsts  = Arrays.copyOf(firsts, count << 1);
+		}
+		
+		exprs[count]   = expr;
+		lines[count]   = line;
+		origins[count] = origin;
+		firsts[count]  = labels;
+		count++;
+	}
+	
+	/*
+	 * A label of the last segment added
+	 */
+	void addLabel(int symbol, int offset) {
+		if(labels == symbols.length) {
+			symbols = Arrays.copyOf(symbols, labels << 1);
+			offsets = Arrays.copyOf(offsets, labels << 1);
+		}
+		
+		symbols[labels] = symbol;
+		offsets[labels] = offset;
+		labels++;
+	}
+	
+	int getSegmentCount() {
+		return count;
+	}
+	
+	int getExpr(int segment) {
+		return exprs[segment];
+	}
+	
+	int getLine(int segment) {
+		return lines[segment];
+	}
+	
+	int getOrigin(int segment) {
+		return origins[segment];
+	}
+	
+	void setOrigin(int segment, int origin) {
+		origins[segment] = origin;
+	}
+	
+	int getFirstLabel(int segment) {
+		return firsts[segment];
+	}
+	
+	int getEndLabel(int segment) {
+		return segment + 1 < count ? firsts[segment + 1] : labels;
+	}
+	
+	int getSymbol(int label) {
+		return symbols[label];
+	}
+	
+	int getOffset(int label) {
+		return offsets[label];
+	}
+}
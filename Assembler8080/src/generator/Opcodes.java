@@ -0,0 +1,161 @@
+package generator;
+import java.util.Arrays;
+
+import tokens.TokenType;
+
+/********************************************
+ * Precomputed 8080 encoding tables, indexed *
+ * by TokenType ordinal. Register operands   *
+ * are folded into the base opcode with the  *
+ * 3 bit register code (B C D E H L M A) or  *
+ * the 2 bit register pair code (B D H SP)   *
+ *******************************************/
+final class Opcodes {
+	public static final byte INVALID = -1;
+	public static final byte NONE    = 0;  // base
+	public static final byte IMM8    = 1;  // base, byte
+	public static final byte IMM16   = 2;  // base, word
+	public static final byte SRC     = 3;  // base | src
+	public static final byte DST     = 4;  // base | dst << 3
+	public static final byte MOV     = 5;  // base | dst << 3 | src
+	public static final byte MVI     = 6;  // base | dst << 3, byte
+	public static final byte PAIR    = 7;  // base | pair << 4
+	public static final byte LXI     = 8;  // base | pair << 4, word
+	public static final byte STACK   = 9;  // base | pair << 4 (PSW instead of SP)
+	public static final byte INDEX   = 10; // base | pair << 4 (B and D only)
+	public static final byte RST     = 11; // base | vector << 3
+	public static final byte ORG     = 12;
+	
+	public static final byte[] FORM    = new byte[TokenType.values().length];
+	public static final int[]  BASE    = new int[TokenType.values().length];
+	public static final byte[] REG     = new byte[TokenType.values().length];
+	public static final byte[] PAIRS   = new byte[TokenType.values().length];
+	public static final byte[] STACKS  = new byte[TokenType.values().length];
+	public static final byte[] INDEXES = new byte[TokenType.values().length];
+	
+	static {
+		Arrays.fill(FORM,    INVALID);
+		Arrays.fill(REG,     INVALID);
+		Arrays.fill(PAIRS,   INVALID);
+		Arrays.fill(STACKS,  INVALID);
+		Arrays.fill(INDEXES, INVALID);
+		
+		reg(TokenType.TK_B, 0);
+		reg(TokenType.TK_C, 1);
+		reg(TokenType.TK_D, 2);
+		reg(TokenType.TK_E, 3);
+		reg(TokenType.TK_H, 4);
+		reg(TokenType.TK_L, 5);
+		reg(TokenType.TK_M, 6);
+		reg(TokenType.TK_A, 7);
+		
+		pair(TokenType.TK_B,   0, PAIRS, STACKS, INDEXES);
+		pair(TokenType.TK_D,   1, PAIRS, STACKS, INDEXES);
+		pair(TokenType.TK_H,   2, PAIRS, STACKS);
+		pair(TokenType.TK_SP,  3, PAIRS);
+		pair(TokenType.TK_PSW, 3, STACKS);
+		
+		op(TokenType.TK_NOP,  NONE, 0x00);
+		op(TokenType.TK_RLC,  NONE, 0x07);
+		op(TokenType.TK_RRC,  NONE, 0x0F);
+		op(TokenType.TK_RAL,  NONE, 0x17);
+		op(TokenType.TK_RAR,  NONE, 0x1F);
+		op(TokenType.TK_DAA,  NONE, 0x27);
+		op(TokenType.TK_CMA,  NONE, 0x2F);
+		op(TokenType.TK_STC,  NONE, 0x37);
+		op(TokenType.TK_CMC,  NONE, 0x3F);
+		op(TokenType.TK_HLT,  NONE, 0x76);
+		op(TokenType.TK_RNZ,  NONE, 0xC0);
+		op(TokenType.TK_RZ,   NONE, 0xC8);
+		op(TokenType.TK_RET,  NONE, 0xC9);
+		op(TokenType.TK_RNC,  NONE, 0xD0);
+		op(TokenType.TK_RC,   NONE, 0xD8);
+		op(TokenType.TK_RPO,  NONE, 0xE0);
+		op(TokenType.TK_XTHL, NONE, 0xE3);
+		op(TokenType.TK_RPE,  NONE, 0xE8);
+		op(TokenType.TK_PCHL, NONE, 0xE9);
+		op(TokenType.TK_XCHG, NONE, 0xEB);
+		op(TokenType.TK_RPLUS,NONE, 0xF0);
+		op(TokenType.TK_DI,   NONE, 0xF3);
+		op(TokenType.TK_RM,   NONE, 0xF8);
+		op(TokenType.TK_SPHL, NONE, 0xF9);
+		op(TokenType.TK_EI,   NONE, 0xFB);
+		
+		op(TokenType.TK_OUT, IMM8, 0xD3);
+		op(TokenType.TK_IN,  IMM8, 0xDB);
+		op(TokenType.TK_ADI, IMM8, 0xC6);
+		op(TokenType.TK_ACI, IMM8, 0xCE);
+		op(TokenType.TK_SUI, IMM8, 0xD6);
+		op(TokenType.TK_SBI, IMM8, 0xDE);
+		op(TokenType.TK_ANI, IMM8, 0xE6);
+		op(TokenType.TK_XRI, IMM8, 0xEE);
+		op(TokenType.TK_ORI, IMM8, 0xF6);
+		op(TokenType.TK_CPI, IMM8, 0xFE);
+		
+		op(TokenType.TK_SHLD, IMM16, 0x22);
+		op(TokenType.TK_LHLD, IMM16, 0x2A);
+		op(TokenType.TK_STA,  IMM16, 0x32);
+		op(TokenType.TK_LDA,  IMM16, 0x3A);
+		op(TokenType.TK_JNZ,  IMM16, 0xC2);
+		op(TokenType.TK_JMP,  IMM16, 0xC3);
+		op(TokenType.TK_CNZ,  IMM16, 0xC4);
+		op(TokenType.TK_JZ,   IMM16, 0xCA);
+		op(TokenType.TK_CZ,   IMM16, 0xCC);
+		op(TokenType.TK_CALL, IMM16, 0xCD);
+		op(TokenType.TK_JNC,  IMM16, 0xD2);
+		op(TokenType.TK_CNC,  IMM16, 0xD4);
+		op(TokenType.TK_JC,   IMM16, 0xDA);
+		op(TokenType.TK_CC,   IMM16, 0xDC);
+		op(TokenType.TK_JPO,  IMM16, 0xE2);
+		op(TokenType.TK_CPO,  IMM16, 0xE4);
+		op(TokenType.TK_JPE,  IMM16, 0xEA);
+		op(TokenType.TK_CPE,  IMM16, 0xEC);
+		op(TokenType.TK_JP,   IMM16, 0xF2);
+		op(TokenType.TK_CPLUS,IMM16, 0xF4);
+		op(TokenType.TK_JM,   IMM16, 0xFA);
+		op(TokenType.TK_CM,   IMM16, 0xFC);
+		
+		op(TokenType.TK_ADD, SRC, 0x80);
+		op(TokenType.TK_ADC, SRC, 0x88);
+		op(TokenType.TK_SUB, SRC, 0x90);
+		op(TokenType.TK_SBB, SRC, 0x98);
+		op(TokenType.TK_ANA, SRC, 0xA0);
+		op(TokenType.TK_XRA, SRC, 0xA8);
+		op(TokenType.TK_ORA, SRC, 0xB0);
+		op(TokenType.TK_CMP, SRC, 0xB8);
+		
+		op(TokenType.TK_INR, DST, 0x04);
+		op(TokenType.TK_DCR, DST, 0x05);
+		op(TokenType.TK_MOV, MOV, 0x40);
+		op(TokenType.TK_MVI, MVI, 0x06);
+		
+		op(TokenType.TK_INX,  PAIR,  0x03);
+		op(TokenType.TK_DAD,  PAIR,  0x09);
+		op(TokenType.TK_DCX,  PAIR,  0x0B);
+		op(TokenType.TK_LXI,  LXI,   0x01);
+		op(TokenType.TK_POP,  STACK, 0xC1);
+		op(TokenType.TK_PUSH, STACK, 0xC5);
+		op(TokenType.TK_STAX, INDEX, 0x02);
+		op(TokenType.TK_LDAX, INDEX, 0x0A);
+		
+		op(TokenType.TK_RST, RST, 0xC7);
+		op(TokenType.TK_ORG, ORG, 0x00);
+	}
+	
+	private Opcodes() {
+	}
+	
+	private static void op(TokenType ins, byte form, int base) {
+		FORM[ins.ordinal()] = form;
+		BASE[ins.ordinal()] = base;
+	}
+	
+	private static void reg(TokenType rg, int code) {
+		REG[rg.ordinal()] = (byte)code;
+	}
+	
+	private static void pair(TokenType rg, int code, byte[]... tables) {
+		for(var table : tables)
+			table[rg.ordinal()] = (byte)code;
+	}
+}
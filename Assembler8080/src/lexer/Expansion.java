@@ -0,0 +1,46 @@
+package lexer;
+import tokens.TokenStream;
+import tokens.TokenType;
+
+/*
+ * Tokens the lexer replays before going back to its
+ * buffer: a macro body or a cached header. line is
+ * where the macro was used, -1 keeps the tokens' own
+ */
+final class Expansion {
+	private TokenStream tokens;
+	private int         next;
+	private int         macro;
+	private int         line;
+	
+	Expansion(TokenStream tokens, int macro, int line) {
+		this.tokens = tokens;
+		this.macro  = macro;
+		this.line   = line;
+		next = 0;
+	}
+	
+	boolean hasNext() {
+		return next < tokens.size() && tokens.getType(next) != TokenType.TK_EOF;
+	}
+	
+	int next() {
+		return next++;
+	}
+	
+	TokenType peek() {
+		return tokens.getType(next);
+	}
+	
+	TokenStream getTokens() {
+		return tokens;
+	}
+	
+	int getMacro() {
+		return macro;
+	}
+	
+	int getLine(int i) {
+		return line < 0 ? tokens.getLine(i) : line;
+	}
+}
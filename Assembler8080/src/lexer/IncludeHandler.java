@@ -0,0 +1,10 @@
+package lexer;
+import java.io.IOException;
+
+/*
+ * Receives the %include directives of a lexer
+ * that does not follow them itself
+ */
+public interface IncludeHandler {
+	void include(String path) throws IOException;
+}
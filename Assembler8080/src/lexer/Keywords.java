@@ -0,0 +1,197 @@
+package lexer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import tokens.TokenType;
+
+/********************************************
+ * JVM wide keyword recogniser. Keywords    *
+ * are at most 8 characters, so a case      *
+ * folded span packs into a long that is    *
+ * looked up in a collision free (perfect)  *
+ * multiplicative hash table without        *
+ * allocating anything                      *
+ *******************************************/
+final class Keywords {
+	private static final int         BITS = 11;
+	private static final long[]      KEYS = new long[1 << BITS];
+	private static final TokenType[] TYPES = new TokenType[1 << BITS];
+	private static final long[]      pendingKeys = new long[128];
+	private static final TokenType[] pendingTypes = new TokenType[128];
+	private static int               pending;
+	private static long              multiplier;
+	
+	static {
+		put("MVI",  TokenType.TK_MVI);
+		put("RET",  TokenType.TK_RET);
+		put("A",    TokenType.TK_A);
+		put("B",    TokenType.TK_B);
+		put("C",    TokenType.TK_C);
+		put("D",    TokenType.TK_D);
+		put("E",    TokenType.TK_E);
+		put("H",    TokenType.TK_H);
+		put("L",    TokenType.TK_L);
+		put("M",    TokenType.TK_M);
+		put("HL",   TokenType.TK_HL);
+		put("PSW",  TokenType.TK_PSW);
+		put("SP",   TokenType.TK_SP);
+		put("JMP",  TokenType.TK_JMP);
+		put("LXI",  TokenType.TK_LXI);
+		put("ORG",  TokenType.TK_ORG);
+		put("BYTE", TokenType.TK_BYTE);
+		put("WORD", TokenType.TK_WORD);
+		put("INX",  TokenType.TK_INX);
+		put("STAX", TokenType.TK_STAX);
+		put("STA",  TokenType.TK_STA);
+		put("SHLD", TokenType.TK_SHLD);
+		put("INR",  TokenType.TK_INR);
+		put("DCR",  TokenType.TK_DCR);
+		put("RLC",  TokenType.TK_RLC);
+		put("RAL",  TokenType.TK_RAL);
+		put("STC",  TokenType.TK_STC);
+		put("DAA",  TokenType.TK_DAA);
+		put("NOP",  TokenType.TK_NOP);
+		put("LDAX", TokenType.TK_LDAX);
+		put("LHLD", TokenType.TK_LHLD);
+		put("LDA",  TokenType.TK_LDA);
+		put("DAD",  TokenType.TK_DAD);
+		put("DCX",  TokenType.TK_DCX);
+		put("HLT",  TokenType.TK_HLT);
+		put("RRC",  TokenType.TK_RRC);
+		put("RAR",  TokenType.TK_RAR);
+		put("CMC",  TokenType.TK_CMC);
+		put("CMA",  TokenType.TK_CMA);
+		put("MOV",  TokenType.TK_MOV);
+		put("ADD",  TokenType.TK_ADD);
+		put("ANA",  TokenType.TK_ANA);
+		put("ORA",  TokenType.TK_ORA);
+		put("XRA",  TokenType.TK_XRA);
+		put("ADC",  TokenType.TK_ADC);
+		put("SUB",  TokenType.TK_SUB);
+		put("SBB",  TokenType.TK_SBB);
+		put("CMP",  TokenType.TK_CMP);
+		put("JZ",   TokenType.TK_JZ);
+		put("RNZ",  TokenType.TK_RNZ);
+		put("RNC",  TokenType.TK_RNC);
+		put("RPO",  TokenType.TK_RPO);
+		put("RP",   TokenType.TK_RPLUS);
+		put("PUSH", TokenType.TK_PUSH);
+		put("POP",  TokenType.TK_POP);
+		put("JNZ",  TokenType.TK_JNZ);
+		put("JNC",  TokenType.TK_JNC);
+		put("JPO",  TokenType.TK_JPO);
+		put("JP",   TokenType.TK_JP);
+		put("OUT",  TokenType.TK_OUT);
+		put("XTHL", TokenType.TK_XTHL);
+		put("DI",   TokenType.TK_DI);
+		put("CNZ",  TokenType.TK_CNZ);
+		put("CNC",  TokenType.TK_CNC);
+		put("CPO",  TokenType.TK_CPO);
+		put("CP",   TokenType.TK_CPLUS);
+		put("ADI",  TokenType.TK_ADI);
+		put("SUI",  TokenType.TK_SUI);
+		put("ANI",  TokenType.TK_ANI);
+		put("ORI",  TokenType.TK_ORI);
+		put("RST",  TokenType.TK_RST);
+		put("RZ",   TokenType.TK_RZ);
+		put("RC",   TokenType.TK_RC);
+		put("RPE",  TokenType.TK_RPE);
+		put("RM",   TokenType.TK_RM);
+		put("PCHL", TokenType.TK_PCHL);
+		put("SPHL", TokenType.TK_SPHL);
+		put("JC",   TokenType.TK_JC);
+		put("JPE",  TokenType.TK_JPE);
+		put("JM",   TokenType.TK_JM);
+		put("IN",   TokenType.TK_IN);
+		put("XCHG", TokenType.TK_XCHG);
+		put("EI",   TokenType.TK_EI);
+		put("CZ",   TokenType.TK_CZ);
+		put("CC",   TokenType.TK_CC);
+		put("CPE",  TokenType.TK_CPE);
+		put("CM",   TokenType.TK_CM);
+		put("CALL", TokenType.TK_CALL);
+		put("ACI",  TokenType.TK_ACI);
+		put("SBI",  TokenType.TK_SBI);
+		put("XRI",  TokenType.TK_XRI);
+		put("CPI",  TokenType.TK_CPI);
+		put("MACRO", TokenType.TK_MACRO);
+		put("ENDM", TokenType.TK_ENDM);
+		put("EQU",  TokenType.TK_EQU);
+		put("SET",  TokenType.TK_SET);
+		put("AND",  TokenType.TK_AND);
+		put("OR",   TokenType.TK_OR);
+		put("XOR",  TokenType.TK_XOR);
+		put("SHL",  TokenType.TK_SHL);
+		put("SHR",  TokenType.TK_SHR);
+		put("MOD",  TokenType.TK_MOD);
+		put("HIGH", TokenType.TK_HIGH);
+		put("LOW",  TokenType.TK_LOW);
+		put("INCBIN", TokenType.TK_INCBIN);
+		put("DS",   TokenType.TK_DS);
+		put("FILL", TokenType.TK_FILL);
+		
+		build();
+	}
+	
+	private Keywords() {
+	}
+	
+	public static TokenType lookup(ByteBuffer buffer, int from, int to) {
+		if(to - from > 8)
+			return null;
+		
+		long key = 0;
+		
+		for(int i = from; i < to; i++)
+			key = key << 8 | buffer.get(i) & 0xDF;
+		
+		int slot = slot(key, multiplier);
+		
+		if(KEYS[slot] != key)
+			return null;
+		return TYPES[slot];
+	}
+	
+	private static void put(String word, TokenType type) {
+		long key = 0;
+		
+		for(int i = 0; i < word.length(); i++)
+			key = key << 8 | word.charAt(i) & 0xDF;
+		
+		pendingKeys[pending]  = key;
+		pendingTypes[pending] = type;
+		pending++;
+	}
+	
+	/*
+	 * Searches for a multiplier that maps every keyword to
+	 * its own slot, so a lookup is one probe and one compare
+	 */
+	private static void build() {
+		for(long m = 0x9E3779B97F4A7C15L; ; m += 0x6A09E667F3BCC90AL) {
+			if(tryMultiplier(m | 1))
+				return;
+		}
+	}
+	
+	private static boolean tryMultiplier(long m) {
+		Arrays.fill(KEYS, 0);
+		
+		for(int i = 0; i < pending; i++) {
+			int slot = slot(pendingKeys[i], m);
+			
+			if(KEYS[slot] != 0)
+				return false;
+			
+			KEYS[slot]  = pendingKeys[i];
+			TYPES[slot] = pendingTypes[i];
+		}
+		
+		multiplier = m;
+		return true;
+	}
+	
+	private static int slot(long key, long m) {
+		return (int)(key * m >>> (64 - BITS));
+	}
+}
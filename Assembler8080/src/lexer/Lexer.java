@@ -2,242 +2,895 @@ package lexer;
 import tokens.*;
 
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.HashMap;
+import preprocessor.IncludePath;
+import preprocessor.Macro;
 import preprocessor.Preprocessor;
+import preprocessor.Source;
+import symbols.SymbolTable;
 /************************************************************
  * This class is responsible for returning a list of tokens *
  * after a complete lexical analysis in the file            *
  * by Eduardo S. Acauan 									*
  ***********************************************************/
-public class Lexer {
+public class Lexer implements TokenSource {
 	private final String  extension = "asm";
 	private final String  headerext = "inc";
-	private List<Token>   tokens;
-	private String        buffer;
+	private final int     window    = 16;
+	private final int     parallelThreshold = 1 << 20;
+	private static final byte SPACE = 1;
+	private static final byte ALPHA = 2;
+	private static final byte DIGIT = 4;
+	private static final byte HEX   = 8;
+	private static final byte[] CLASS = new byte[128];
+	private TokenStream   tokens;
+	private ByteBuffer    buffer;
 	private boolean       error;
 	private int 	      pos;
+	private int           limit;
+	private int           start;
 	private int           line;
-	private HashMap<String, TokenType> keys;
 	private Preprocessor  pproc;
+	private SymbolTable   symbols;
+	private Source        source;
+	private ArrayDeque<Source> sources;
+	private IncludeHandler handler;
+	private ArrayDeque<Expansion> expansions;
+	private boolean       expand;
+	private ArrayDeque<Boolean> conditions;
+	private PrintStream   out;
 	
-	public Lexer(String path) throws IOException {
-		String ext = getExtension(path);
-		if(!ext.equals(extension) && !ext.equals(headerext)){
-			System.out.println("Invalid extension!");
-			error = true;
-			return;
+	static {
+		for(int c = 0; c <= ' '; c++)
+			CLASS[c] = SPACE;
+		
+		for(int c = 'A'; c <= 'Z'; c++) {
+			CLASS[c]        = ALPHA;
+			CLASS[c | 0x20] = ALPHA;
 		}
-		tokens = new ArrayList<Token>();
-		keys   = new HashMap<>();
 		
-		pproc = new Preprocessor(path);
+		for(int c = 'A'; c <= 'F'; c++) {
+			CLASS[c]        |= HEX;
+			CLASS[c | 0x20] |= HEX;
+		}
 		
-		pproc.preprocess();
+		for(int c = '0'; c <= '9'; c++)
+			CLASS[c] = DIGIT | HEX;
 		
-		if(pproc.getError()) {
+		CLASS['_'] = ALPHA;
+	}
+	
+	public Lexer(String path) throws IOException {
+		this(path, new IncludePath());
+	}
+	
+	public Lexer(String path, IncludePath includes) throws IOException {
+		out = System.out;
+		
+		String ext = getExtension(path);
+		if(ext == null || !ext.equals(extension) && !ext.equals(headerext)){
+			out.println("Invalid extension!");
 			error = true;
 			return;
 		}
+		symbols = new SymbolTable();
+		pproc   = new Preprocessor(includes);
+		sources = new ArrayDeque<>();
+		expansions = new ArrayDeque<>();
+		conditions = new ArrayDeque<>();
+		expand  = true;
 		
+		load(pproc.open(path));
 		
-		buffer = pproc.getFinalBuffer();
-		
-		line  = pproc.getLine();
-		pos   = 0;
 		error = false;
+	}
+	
+	/*
+	 * One file of the include graph, its includes are
+	 * handed to handler and left as TK_INCLUDE tokens.
+	 * Errors are reported to out
+	 */
+	public Lexer(Source unit, SymbolTable symbols, IncludeHandler handler, PrintStream out) {
+		this(unit, new Preprocessor(), symbols, out);
 		
-		makeKeywords();
+		this.handler = handler;
 	}
 	
+	/*
+	 * Chunk of a larger buffer, lexed by ParallelLexer
+	 */
+	Lexer(Source chunk, Preprocessor pproc, SymbolTable symbols, PrintStream out) {
+		this.pproc   = pproc;
+		this.symbols = symbols;
+		this.out     = out;
+		this.sources = new ArrayDeque<>();
+		this.error   = false;
+		
+		expansions = new ArrayDeque<>();
+		conditions = new ArrayDeque<>();
+		expand     = true;
+		
+		load(chunk);
+	}
+	
+	/*
+	 * Lexes the whole source, sources of at least
+	 * parallelThreshold bytes are lexed in parallel chunks
+	 */
 	public boolean lex() {
 		if(error)
 			return false;
-		while(!endStream()) {
-			if(peek() <= ' ')
+		
+		if(!isLarge())
+			return lexRange();
+		
+		tokens = ParallelLexer.lex(source, pproc, symbols, out);
+		
+		if(tokens == null)
+			error = true;
+		return !error;
+	}
+	
+	boolean lexRange() {
+		tokens = new TokenStream();
+		
+		while(scan())
+			;
+		
+		return !error;
+	}
+	
+	public boolean isLarge() {
+		return limit - pos >= parallelThreshold;
+	}
+	
+	/*
+	 * Streaming mode, tokens are lexed only when the
+	 * reader of the returned stream asks for them
+	 */
+	public TokenStream stream() {
+		tokens = new TokenStream(this, window);
+		
+		return tokens;
+	}
+	
+	@Override
+	public boolean fill(TokenStream stream) {
+		return scan();
+	}
+	
+	/*
+	 * Scans until exactly one token has been appended,
+	 * returns false once the TK_EOF token has been appended
+	 */
+	private boolean scan() {
+		int count = tokens.size();
+		
+		while(tokens.size() == count) {
+			if(!expansions.isEmpty()) {
+				if(expansions.peek().hasNext())
+					replay(expansions.peek());
+				else
+					expansions.pop();
+				continue;
+			}
+			
+			if(endStream()) {
+				if(!sources.isEmpty()) {
+					pproc.leave();
+					load(sources.pop());
+					continue;
+				}
+				
+				if(!conditions.isEmpty()) {
+					error("Missing %endif!");
+					conditions.clear();
+				}
+				
+				start = pos;
+				insert(TokenType.TK_EOF, 0);
+				return false;
+			}
+			
+			if(is(SPACE)) {
 				skipSpaces();
+				continue;
+			}
+			
+			start = pos;
 			
-			if(endStream())
-				break;
-		
 			switch(peek()) {
 				case ';':
 					skipLine();
 					continue;
 				case '/':
-					if(buffer.charAt(pos + 1) == '*') {
-						next();
+					if(peekNext() == '*') {
 						multiLineSkip();
-						break;
+						continue;
 					}
-					if(buffer.charAt(pos + 1) == '/') {
+					if(peekNext() == '/') {
 						skipLine();
 						continue;
 					}
 					
-					insert(Token.makeToken(null, TokenType.TK_DIV, 0, line));
-					break;
+					single(TokenType.TK_DIV);
+					continue;
 				case '(':
-					insert(Token.makeToken(null, TokenType.TK_LP, 0, line));
-					break;
+					single(TokenType.TK_LP);
+					continue;
 				case ')':
-					insert(Token.makeToken(null, TokenType.TK_RP, 0, line));
-					break;
+					single(TokenType.TK_RP);
+					continue;
 				case '+':
-					insert(Token.makeToken(null, TokenType.TK_PLUS, 0, line));
-					break;
+					single(TokenType.TK_PLUS);
+					continue;
 				case '-':
-					insert(Token.makeToken(null, TokenType.TK_MINUS, 0, line));
-					break;
+					single(TokenType.TK_MINUS);
+					continue;
 				case '*':
-					insert(Token.makeToken(null, TokenType.TK_MUL, 0, line));
-					break;
+					single(TokenType.TK_MUL);
+					continue;
 				case ',':
-					insert(Token.makeToken(null, TokenType.TK_COMMA, 0, line));
-					break;
+					single(TokenType.TK_COMMA);
+					continue;
 				case '\'':
 					handleChar();
-					break;
+					continue;
 				case '\"':
 					handleString();
 					continue;
+				case '%':
+					directive();
+					continue;
 				default:
-					if(isAlpha()) {
+					if(is(ALPHA)) {
 						identifier();
 						continue;
 					}
 					
-					if(isDigit()) {
+					if(is(DIGIT)) {
 						number();
 						continue;
 					}
-				System.out.println("Error(" + line + "): invalid token: " + peek());
-				error = true;
-				break;
+					error("invalid token: " + peek());
+					next();
+					continue;
 			}
-			
-			next();
 		}
 		
-		if(error)
-			return false;
-		insert(Token.makeToken(null, TokenType.TK_EOF, 0, line));
 		return true;
 	}
 	
-	private void handleChar() {
+	private void directive() {
 		next();
 		
-		char c = peek();
+		int from = pos;
+		
+		while(!endStream() && is(ALPHA))
+			next();
+		
+		String name = text(from, pos);
+		
+		if(!expand) {
+			error("Directive inside a macro body!");
+			skipLine();
+			return;
+		}
+		
+		if(pproc.isInclude(name)) {
+			include();
+			return;
+		}
+		
+		// macros change how the files after them are lexed, so
+		// a FrontEnd unit gives up and lets the files be lexed in order
+		if(handler != null) {
+			error("Invalid preprocessor command!");
+			pos = limit;
+			return;
+		}
+		
+		if(pproc.isDefine(name)) {
+			define();
+			return;
+		}
 		
-		if(pos + 1 >= buffer.length() || !match('\'')) {
-			System.out.println("Error(" + line + "): " + "missing \' !");
+		if(pproc.isIf(name)) {
+			condition(evaluate() != 0);
+			return;
+		}
+		
+		if(pproc.isIfdef(name) || pproc.isIfndef(name)) {
+			int symbol = macroName();
+			
+			if(symbol >= 0)
+				condition((pproc.getMacro(symbol) != null) == pproc.isIfdef(name));
+			return;
+		}
+		
+		if(pproc.isElse(name)) {
+			if(conditions.isEmpty() || !conditions.pop()) {
+				error("%else without %if!");
+				skipLine();
+				return;
+			}
+			
+			if(skipRegion())
+				error("%else after %else!");
+			return;
+		}
+		
+		if(pproc.isEndif(name)) {
+			if(conditions.isEmpty())
+				error("%endif without %if!");
+			else
+				conditions.pop();
+			skipLine();
+			return;
+		}
+		
+		error("Invalid preprocessor command!");
+		skipLine();
+	}
+	
+	/*
+	 * A true condition is lexed as usual up to its %else or %endif,
+	 * conditions remembers whether an %else may still come
+	 */
+	private void condition(boolean value) {
+		skipLine();
+		
+		if(value) {
+			conditions.push(true);
+			return;
+		}
+		
+		if(skipRegion())
+			conditions.push(false);
+	}
+	
+	/*
+	 * Skips a disabled region line by line without lexing it, only
+	 * a '%' at the start of a line is looked at. Stops after the
+	 * %else or %endif closing it, returns true for %else
+	 */
+	private boolean skipRegion() {
+		int depth = 0;
+		
+		skipLine();
+		
+		while(pos < limit) {
+			pos++;
+			line++;
+			
+			while(pos < limit && buffer.get(pos) != '\n' && is(SPACE))
+				pos++;
+			
+			if(pos >= limit || buffer.get(pos) != '%') {
+				skipLine();
+				continue;
+			}
+			
+			int from = ++pos;
+			
+			while(!endStream() && is(ALPHA))
+				next();
+			
+			String name = text(from, pos);
+			
+			skipLine();
+			
+			if(pproc.isIf(name) || pproc.isIfdef(name) || pproc.isIfndef(name))
+				depth++;
+			else if(pproc.isEndif(name) && depth-- == 0)
+				return false;
+			else if(pproc.isElse(name) && depth == 0)
+				return true;
+		}
+		
+		error("Missing %endif!");
+		return false;
+	}
+	
+	/*
+	 * Value of the rest of the line, with macros expanded
+	 */
+	private int evaluate() {
+		int eol = pos;
+		
+		while(eol < limit && buffer.get(eol) != '\n')
+			eol++;
+		
+		Lexer expr = new Lexer(new Source(source.getPath(), buffer, pos, eol, line), pproc, symbols, out);
+		
+		pos = eol;
+		
+		if(!expr.lexRange()) {
 			error = true;
+			return 0;
+		}
+		
+		int value = pproc.evaluate(expr.getTokens(), out);
+		
+		error |= pproc.getError();
+		return value;
+	}
+	
+	private int macroName() {
+		skipBlanks();
+		
+		if(endStream() || !is(ALPHA)) {
+			error("Macro name expected!");
+			skipLine();
+			return -1;
+		}
+		
+		int from = pos;
+		
+		while(!endStream() && is(ALPHA | DIGIT))
+			next();
+		
+		if(Keywords.lookup(buffer, from, pos) != null) {
+			error("Macro name is a keyword!");
+			skipLine();
+			return -1;
+		}
+		
+		return symbols.intern(text(from, pos));
+	}
+	
+	/*
+	 * %include "file" switches the lexer to the included
+	 * file, the rest of this one is lexed once it ends.
+	 * Nested includes stack up the same way
+	 */
+	private void include() {
+		skipBlanks();
+		
+		if(endStream() || peek() != '\"') {
+			error("String expected at preprocessor include!");
+			skipLine();
+			return;
+		}
+		
+		next();
+		
+		int from = pos;
+		
+		while(!endStream() && peek() != '\n' && peek() != '\"')
+			next();
+		
+		if(endStream() || peek() != '\"') {
+			error("Missing '\"'");
+			skipLine();
 			return;
 		}
 		
-		insert(Token.makeToken("", TokenType.TK_LITERAL, c, line));
+		String path = text(from, pos);
+		
+		next();
+		
+		if(handler != null) {
+			try {
+				handler.include(path);
+				insert(TokenType.TK_INCLUDE, tokens.addString(path));
+			}
+			catch(IOException e) {
+				error("unable to open file \"" + path + "\"");
+			}
+			return;
+		}
+		
+		try {
+			Source included = pproc.include(path, line, out);
+			
+			if(included == null) {
+				error |= pproc.getError();
+				return;
+			}
+			
+			source.save(pos, line);
+			sources.push(source);
+			load(included);
+			
+			if(TokenCache.isCacheable(included)) {
+				TokenStream cached = TokenCache.tokens(included, symbols, out);
+				
+				pos = limit;
+				
+				if(cached == null)
+					error = true;
+				else
+					expansions.push(new Expansion(cached, -1, -1));
+			}
+		}
+		catch(IOException e) {
+			error("unable to open file \"" + path + "\"");
+		}
 	}
 	
-	private void handleString() {
-		StringBuilder str = new StringBuilder();
+	/*
+	 * %define NAME tokens or %define NAME(a, b) tokens, the body is the
+	 * rest of the line. It is lexed now and expanded where NAME is used
+	 */
+	private void define() {
+		int   symbol = macroName();
+		int[] params = null;
 		
-		do {
+		if(symbol < 0)
+			return;
+		
+		if(!endStream() && peek() == '(') {
 			next();
-			str.append(peek());
-		}while(!endStream() && pos + 1 < buffer.length() && !match('\"'));
+			
+			if((params = parameters()) == null) {
+				skipLine();
+				return;
+			}
+		}
+		
+		int eol = pos;
+		
+		while(eol < limit && buffer.get(eol) != '\n')
+			eol++;
+		
+		Lexer body = new Lexer(new Source(source.getPath(), buffer, pos, eol, line), pproc, symbols, out);
 		
-		if(peek() != '\"') {
-			System.out.println("Error(" + line + "): " + "Missing '\"'");
+		body.expand = false;
+		
+		if(!body.lexRange())
 			error = true;
-			return;
+		
+		pos = eol;
+		
+		pproc.define(symbol, new Macro(params, body.getTokens()));
+	}
+	
+	private int[] parameters() {
+		List<Integer> params = new ArrayList<>();
+		
+		skipBlanks();
+		
+		while(!endStream() && peek() != ')') {
+			if(!is(ALPHA)) {
+				error("Parameter name expected!");
+				return null;
+			}
+			
+			int from = pos;
+			
+			while(!endStream() && is(ALPHA | DIGIT))
+				next();
+			
+			if(Keywords.lookup(buffer, from, pos) != null) {
+				error("Parameter name is a keyword!");
+				return null;
+			}
+			
+			params.add(symbols.intern(text(from, pos)));
+			
+			skipBlanks();
+			
+			if(!endStream() && peek() == ',') {
+				next();
+				skipBlanks();
+			}
+			else if(endStream() || peek() != ')') {
+				error("',' expected!");
+				return null;
+			}
+		}
+		
+		if(endStream()) {
+			error("Missing ')' !");
+			return null;
 		}
 		
 		next();
 		
-		insert(Token.makeToken(str.toString(), TokenType.TK_STRING, 0, line));
+		return params.stream().mapToInt(Integer::intValue).toArray();
+	}
+	
+	/*
+	 * Copies the next token of an expansion, an identifier
+	 * naming a macro is expanded in turn
+	 */
+	private void replay(Expansion exp) {
+		TokenStream from = exp.getTokens();
+		int i = exp.next();
+		
+		if(from.getType(i) == TokenType.TK_ID && expand(from.getValue(i), exp.getLine(i)))
+			return;
+		
+		copy(from, i, tokens, exp.getLine(i));
 	}
 	
-	private boolean match(char c) {
-		if(endStream() || pos + 1 >= buffer.length() || buffer.charAt(pos + 1) != c)
+	/*
+	 * Pushes the expansion of symbol when it names a macro, returns
+	 * false otherwise. A macro is not expanded inside itself, and
+	 * one with parameters only when '(' follows its name
+	 */
+	private boolean expand(int symbol, int at) {
+		Macro macro = expand ? pproc.getMacro(symbol) : null;
+		
+		if(macro == null || macro.getParams() != null && !calls())
 			return false;
-		next();
+		
+		for(var exp : expansions) {
+			if(exp.getMacro() == symbol)
+				return false;
+		}
+		
+		TokenStream body = macro.getParams() == null ? macro.getBody() : invoke(symbol, macro, at);
+		
+		if(body != null)
+			expansions.push(new Expansion(body, symbol, at));
 		return true;
 	}
 	
-	private void identifier() {
-		StringBuilder str = new StringBuilder();
+	/*
+	 * Lexes the arguments of a macro with parameters and substitutes
+	 * them into its body. The result is kept in the macro, later uses
+	 * with the same arguments reuse it
+	 */
+	private TokenStream invoke(int symbol, Macro macro, int at) {
+		TokenStream out  = tokens;
+		TokenStream args = new TokenStream(16);
+		List<Integer> bounds = new ArrayList<>();
+		int depth = 0;
+		
+		tokens = args;
+		
+		boolean closed = scan();
+		
+		bounds.add(1);
+		
+		while(closed) {
+			int i = args.size();
+			
+			if(!scan()) {
+				closed = false;
+				break;
+			}
+			
+			TokenType type = args.getType(i);
+			
+			if(type == TokenType.TK_LP)
+				depth++;
+			if(type == TokenType.TK_RP && depth-- == 0) {
+				bounds.add(i + 1);
+				break;
+			}
+			if(type == TokenType.TK_COMMA && depth == 0)
+				bounds.add(i + 1);
+		}
+		
+		tokens = out;
+		
+		if(!closed) {
+			error("Missing ')' after the arguments of macro " + symbols.getName(symbol) + "!", at);
+			return null;
+		}
+		
+		int count = bounds.size() - 1;
+		
+		if(count == 1 && bounds.get(1) == 2)
+			count = 0;
+		
+		if(count != macro.getParams().length) {
+			error("Macro " + symbols.getName(symbol) + " takes " + macro.getParams().length + " arguments!", at);
+			return null;
+		}
+		
+		StringBuilder key = new StringBuilder();
+		
+		for(int i = 1; i < args.size() - 1; i++) {
+			key.append(args.getType(i).ordinal()).append(':');
+			key.append(args.getType(i) == TokenType.TK_STRING ? args.getString(i) : args.getValue(i)).append(' ');
+		}
+		
+		TokenStream expansion = macro.getExpansion(key.toString());
+		
+		if(expansion != null)
+			return expansion;
+		
+		TokenStream body = macro.getBody();
+		
+		expansion = new TokenStream(Math.max(body.size(), 4));
+		
+		for(int i = 0; i < body.size() && body.getType(i) != TokenType.TK_EOF; i++) {
+			int param = body.getType(i) == TokenType.TK_ID ? macro.indexOf(body.getValue(i)) : -1;
+			
+			if(param < 0) {
+				copy(body, i, expansion, body.getLine(i));
+				continue;
+			}
+			
+			for(int j = bounds.get(param); j < bounds.get(param + 1) - 1; j++)
+				copy(args, j, expansion, args.getLine(j));
+		}
+		
+		macro.putExpansion(key.toString(), expansion);
+		
+		return expansion;
+	}
+	
+	/*
+	 * Whether the next token is '(', without lexing it
+	 */
+	private boolean calls() {
+		for(var exp : expansions) {
+			if(exp.hasNext())
+				return exp.peek() == TokenType.TK_LP;
+		}
+		
+		int i = pos;
+		
+		while(i < limit && buffer.get(i) != '\n' && buffer.get(i) >= 0 && (CLASS[buffer.get(i)] & SPACE) != 0)
+			i++;
+		
+		return i < limit && buffer.get(i) == '(';
+	}
+	
+	private void copy(TokenStream from, int i, TokenStream to, int at) {
+		int value = from.getValue(i);
+		
+		if(from.getType(i) == TokenType.TK_STRING)
+			value = to.addString(from.getString(i));
+		
+		to.add(from.getType(i), value, at, from.getStart(i), from.getLength(i));
+	}
+	
+	private void load(Source src) {
+		source = src;
+		buffer = src.getBuffer();
+		pos    = src.getPos();
+		limit  = src.getLimit();
+		line   = src.getLine();
+	}
+	
+	private void single(TokenType type) {
+		next();
+		insert(type, 0);
+	}
+	
+	private void handleChar() {
+		next();
+		
+		if(pos + 1 >= limit || peekNext() != '\'') {
+			error("missing \' !");
+			skipLine();
+			return;
+		}
+		
+		char c = peek();
+		
+		pos += 2;
+		
+		insert(TokenType.TK_LITERAL, c);
+	}
+	
+	private void handleString() {
+		next();
 		
+		int from = pos;
+		
+		while(!endStream() && peek() != '\"') {
+			if(peek() == '\n')
+				line++;
+			next();
+		}
+		
+		if(endStream()) {
+			error("Missing '\"'");
+			return;
+		}
+		
+		String str = text(from, pos);
+		
+		next();
+		
+		insert(TokenType.TK_STRING, tokens.addString(str));
+	}
+	
+	private void identifier() {
 		do {
-			str.append(peek());
 			next();
-		}while(!endStream() && (isAlpha() || isDigit()));
+		}while(!endStream() && is(ALPHA | DIGIT));
+		
+		TokenType key = Keywords.lookup(buffer, start, pos);
+		
+		// the same goes for a MACRO, the unit would be parsed for nothing
+		if(key == TokenType.TK_MACRO && handler != null) {
+			error("MACRO inside a unit!");
+			pos = limit;
+			return;
+		}
 		
-		if(keys.containsKey(str.toString().toUpperCase())) {
-			insert(Token.makeToken(str.toString(), keys.get(str.toString().toUpperCase()), 0, line));
+		if(key != null) {
+			insert(key, 0);
 			return;
 		}
 		
+		String str = text(start, pos);
+		
 		if(!endStream() && peek() == ':') {
 			next();
-			insert(Token.makeToken(str.toString(), TokenType.TK_LABEL, 0, line));
+			insert(TokenType.TK_LABEL, symbols.intern(str));
 			return;
 		}
 		
-		insert(Token.makeToken(str.toString(), TokenType.TK_ID, 0, line));
+		int symbol = symbols.intern(str);
+		
+		if(expand(symbol, line))
+			return;
+		
+		insert(TokenType.TK_ID, symbol);
 	}
 	
 	private void number() {
 		int value = 0;
 		
-		if(peek() == '0' && match('x') || match('X')) {
-			next();
+		if(peek() == '0' && (peekNext() == 'x' || peekNext() == 'X')) {
+			boolean invalid = false;
 			
-			while(!endStream() && (isAlpha() || isDigit())) {
-				if(isDigit()) {
-					value = value << 4 | (peek() - '0') & 0xF;
+			pos += 2;
+			
+			while(!endStream() && is(ALPHA | DIGIT)) {
+				if(is(DIGIT)) {
+					value = value << 4 | peek() - '0';
 				}
-				else if(isHex()) {
-					value = value << 4 | (peek() - 'A' + 10) & 0xF;
+				else if(is(HEX)) {
+					value = value << 4 | (peek() & 0xDF) - 'A' + 10;
 				}
 				else {
-					System.out.println("Error(" + line + "): invalid hex number " + peek());
-					error = true;
+					error("invalid hex number " + peek());
+					invalid = true;
 				}
 				next();
 			}
 			
-			if(error)
+			// only this literal is dropped, earlier errors do not matter
+			if(invalid)
 				return;
 			
-			insert(Token.makeToken(null, TokenType.TK_LITERAL, value, line));
+			insert(TokenType.TK_LITERAL, value);
 			return;
 		}
 		
-		while(!endStream() && isDigit()) {
+		while(!endStream() && is(DIGIT)) {
 			value = value * 10 + peek() - '0';
 			next();
 		}
 		
-		insert(Token.makeToken(null, TokenType.TK_LITERAL, value, line));
+		insert(TokenType.TK_LITERAL, value);
 	}
 	
 	public boolean getError() {
 		return error;
 	}
 	
-	public List<Token> getTokens(){
+	public TokenStream getTokens(){
 		return tokens;
 	}
 	
-	private boolean isAlpha() {
-		return (char)(peek() & 0xDF) >= 'A' && (char)(peek() & 0xDF) <= 'Z'
-				|| buffer.charAt(pos) == '_';
+	public SymbolTable getSymbols() {
+		return symbols;
 	}
 	
-	private boolean isDigit() {
-		return peek() >= '0' && peek() <= '9';
+	public Source getSource() {
+		return source;
+	}
+	
+	private boolean is(int mask) {
+		byte c = buffer.get(pos);
+		
+		return c >= 0 && (CLASS[c] & mask) != 0;
 	}
 	
 	private String getExtension(String path) {
@@ -246,40 +899,38 @@ public class Lexer {
 		return null;
 	}
 	
-	private boolean isHex() {
-		return (char)(peek() & 0xDF) >= 'A' && (char)(peek() & 0xDF) <= 'F';
-	}
-	
 	private void multiLineSkip() {
-		do {
+		pos += 2;
+		
+		while(!endStream()) {
+			if(peek() == '*' && peekNext() == '/') {
+				pos += 2;
+				return;
+			}
 			if(peek() == '\n')
 				line++;
 			next();
-		}while(!endStream() && pos + 1 < buffer.length() && buffer.charAt(pos + 1) != '/');
-		
-		pos++;
-		
-		if(endStream() || peek() != '*' && peek() != '/') {
-			System.out.println("Error(" + line + "): missing */ !");
-			error = true;
-			return;
 		}
+		
+		error("missing */ !");
 	}
 	
 	private void skipSpaces() {
-		while(!endStream() && peek() <= ' ') {
+		while(!endStream() && is(SPACE)) {
 			if(peek() == '\n')
 				line++;
 			next();
 		}
 	}
 	
+	private void skipBlanks() {
+		while(!endStream() && peek() != '\n' && is(SPACE))
+			next();
+	}
+	
 	private void skipLine() {
-		do {
-			if(peek() == '\n')
-				line++;
+		while(!endStream() && peek() != '\n')
 			next();
-		}while(!endStream() && peek() != '\n');
 	}
 	
 	private void next() {
@@ -287,110 +938,41 @@ public class Lexer {
 	}
 	
 	private boolean endStream() {
-		return pos >= buffer.length();
+		return pos >= limit;
 	}
 	
 	private char peek() {
-		return buffer.charAt(pos);
-	}
-	
-	private void insert(Token token) {
-		tokens.add(token);
-	}
-	
-	private void makeKeywords() {
-		keys.put("MVI", TokenType.TK_MVI);
-		keys.put("RET", TokenType.TK_RET);
-		keys.put("A",   TokenType.TK_A);
-		keys.put("B",   TokenType.TK_B);
-		keys.put("C",   TokenType.TK_C);
-		keys.put("D",   TokenType.TK_D);
-		keys.put("E",   TokenType.TK_E);
-		keys.put("H",   TokenType.TK_H);
-		keys.put("L",   TokenType.TK_L);
-		keys.put("M",   TokenType.TK_M);
-		keys.put("HL",  TokenType.TK_HL);
-		keys.put("PSW", TokenType.TK_PSW);
-		keys.put("SP",  TokenType.TK_SP);
-		keys.put("JMP", TokenType.TK_JMP);
-		keys.put("LXI", TokenType.TK_LXI);
-		keys.put("ORG", TokenType.TK_ORG);
-		keys.put("BYTE",TokenType.TK_BYTE);
-		keys.put("WORD",TokenType.TK_WORD);
-		keys.put("INX", TokenType.TK_INX);
-		keys.put("STAX",TokenType.TK_STAX);
-		keys.put("STA", TokenType.TK_STA);
-		keys.put("SHLD",TokenType.TK_SHLD);
-		keys.put("INR", TokenType.TK_INR);
-		keys.put("DCR", TokenType.TK_DCR);
-		keys.put("RLC", TokenType.TK_RLC);
-		keys.put("RAL", TokenType.TK_RAL);
-		keys.put("STC", TokenType.TK_STC);
-		keys.put("DAA", TokenType.TK_DAA);
-		keys.put("NOP", TokenType.TK_NOP);
-		keys.put("LDAX",TokenType.TK_LDAX);
-		keys.put("LHLD",TokenType.TK_LHLD);
-		keys.put("LDA", TokenType.TK_LDA);
-		keys.put("DAD", TokenType.TK_DAD);
-		keys.put("DCX", TokenType.TK_DCX);
-		keys.put("HLT", TokenType.TK_HLT);
-		keys.put("RRC", TokenType.TK_RRC);
-		keys.put("RAR", TokenType.TK_RAR);
-		keys.put("CMC", TokenType.TK_CMC);
-		keys.put("MOV", TokenType.TK_MOV);
-		keys.put("ADD", TokenType.TK_ADD);
-		keys.put("ANA", TokenType.TK_ANA);
-		keys.put("ORA", TokenType.TK_ORA);
-		keys.put("XRA", TokenType.TK_XRA);
-		keys.put("ADC", TokenType.TK_ADC);
-		keys.put("SUB", TokenType.TK_SUB);
-		keys.put("SBB", TokenType.TK_SBB);
-		keys.put("CMP", TokenType.TK_CMP);
-		keys.put("JZ",  TokenType.TK_JZ);
-		keys.put("RNZ", TokenType.TK_RNZ);
-		keys.put("RNC", TokenType.TK_RNC);
-		keys.put("RPO", TokenType.TK_RPO);
-		keys.put("RP",  TokenType.TK_RPLUS);
-		keys.put("PUSH",TokenType.TK_PUSH);
-		keys.put("POP", TokenType.TK_POP);
-		keys.put("JNZ", TokenType.TK_JNZ);
-		keys.put("JNC", TokenType.TK_JNC);
-		keys.put("JPO", TokenType.TK_JPO);
-		keys.put("JP",  TokenType.TK_JP);
-		keys.put("OUT", TokenType.TK_OUT);
-		keys.put("XTHL",TokenType.TK_XTHL);
-		keys.put("DI",  TokenType.TK_DI);
-		keys.put("CNZ", TokenType.TK_CNZ);
-		keys.put("CNC", TokenType.TK_CNC);
-		keys.put("CPO", TokenType.TK_CPO);
-		keys.put("CP",  TokenType.TK_CPLUS);
-		keys.put("ADI", TokenType.TK_ADI);
-		keys.put("SUI", TokenType.TK_SUI);
-		keys.put("ANI", TokenType.TK_ANI);
-		keys.put("ORI", TokenType.TK_ORI);
-		keys.put("RST", TokenType.TK_RST);
-		keys.put("RZ",  TokenType.TK_RZ);
-		keys.put("RC",  TokenType.TK_RC);
-		keys.put("RPE", TokenType.TK_RPE);
-		keys.put("RM",  TokenType.TK_RM);
-		keys.put("PCHL",TokenType.TK_PCHL);
-		keys.put("SPHL",TokenType.TK_SPHL);
-		keys.put("JZ",  TokenType.TK_JZ);
-		keys.put("JC",  TokenType.TK_JC);
-		keys.put("JPE", TokenType.TK_JPE);
-		keys.put("JM",  TokenType.TK_JM);
-		keys.put("IN",  TokenType.TK_IN);
-		keys.put("XCHG",TokenType.TK_XCHG);
-		keys.put("EI",  TokenType.TK_EI);
-		keys.put("CZ",  TokenType.TK_CZ);
-		keys.put("CC",  TokenType.TK_CC);
-		keys.put("CPE", TokenType.TK_CPE);
-		keys.put("CM",  TokenType.TK_CM);
-		keys.put("CALL",TokenType.TK_CALL);
-		keys.put("ACI", TokenType.TK_ACI);
-		keys.put("SBI", TokenType.TK_SBI);
-		keys.put("XRI", TokenType.TK_XRI);
-		keys.put("CPI", TokenType.TK_CPI);
-		keys.put("NOP", TokenType.TK_NOP);
+		return (char)(buffer.get(pos) & 0xFF);
+	}
+	
+	private char peekNext() {
+		if(pos + 1 >= limit)
+			return 0;
+		return (char)(buffer.get(pos + 1) & 0xFF);
+	}
+	
+	/*
+	 * Only identifiers and strings are materialized,
+	 * every other token is just its span in the buffer
+	 */
+	private String text(int from, int to) {
+		byte[] str = new byte[to - from];
+		
+		buffer.get(from, str);
+		
+		return new String(str, StandardCharsets.US_ASCII);
+	}
+	
+	private void insert(TokenType type, int value) {
+		tokens.add(type, value, line, start, pos - start);
+	}
+	
+	private void error(String args) {
+		error(args, line);
+	}
+	
+	private void error(String args, int line) {
+		out.println("Error(" + line + "): " + args);
+		error = true;
 	}
 }
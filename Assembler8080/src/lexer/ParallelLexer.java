@@ -0,0 +1,272 @@
+package lexer;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import preprocessor.Preprocessor;
+import preprocessor.Source;
+import symbols.SymbolTable;
+import tokens.TokenStream;
+import tokens.TokenType;
+
+/********************************************
+ * Splits a large source at line boundaries *
+ * outside comments and string literals,    *
+ * lexes the chunks on the fork join pool   *
+ * and stitches their token streams back    *
+ * together in source order.                *
+ *                                          *
+ * A %include line is a chunk of its own,   *
+ * lexed in order on the calling thread. If *
+ * a file it pulls in defines macros, the   *
+ * rest of the source is lexed in order     *
+ * after it. Chunks report to a buffer of   *
+ * their own, printed in source order       *
+ *******************************************/
+final class ParallelLexer {
+	private static final int    minChunk = 1 << 18;
+	private static final byte[] include  = "include".getBytes();
+	private Source      source;
+	private ByteBuffer  buffer;
+	private int         limit;
+	private SymbolTable symbols;
+	private int[]       bounds;
+	private int[]       lines;
+	private boolean[]   ordered;
+	private int         count;
+	
+	private ParallelLexer(Source source, SymbolTable symbols) {
+		this.source  = source;
+		this.symbols = symbols;
+		
+		buffer  = source.getBuffer();
+		limit   = source.getLimit();
+		bounds  = new int[16];
+		lines   = new int[16];
+		ordered = new boolean[16];
+		
+		bounds[0] = source.getPos();
+		lines[0]  = source.getLine();
+	}
+	
+	/*
+	 * Returns null when a chunk had errors, they were already reported to out
+	 */
+	public static TokenStream lex(Source source, Preprocessor pproc, SymbolTable symbols, PrintStream out) {
+		int size   = source.getLimit() - source.getPos();
+		int chunks = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism() * 4, size / minChunk));
+		
+		ParallelLexer lex = new ParallelLexer(source, symbols);
+		
+		lex.split(size / chunks);
+		
+		return lex.lex(pproc, out);
+	}
+	
+	private TokenStream lex(Preprocessor pproc, PrintStream out) {
+		Lexer[] chunks = new Lexer[count];
+		ByteArrayOutputStream[] reports = new ByteArrayOutputStream[count];
+		ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[count];
+		int rest = count;
+		
+		// the includes first, macros defined by what they pull
+		// in are expanded in the rest of the source
+		for(int i = 0; i < count && rest == count; i++) {
+			if(!ordered[i])
+				continue;
+			
+			chunks[i] = chunk(i, i + 1, pproc, reports);
+			chunks[i].lexRange();
+			
+			if(pproc.hasMacros())
+				rest = i + 1;
+		}
+		
+		// chunks without directives expand nothing, they get a
+		// preprocessor of their own and never read the shared one
+		for(int i = 0; i < rest; i++) {
+			if(ordered[i])
+				continue;
+			
+			Lexer chunk = chunks[i] = chunk(i, i + 1, new Preprocessor(), reports);
+			
+			tasks[i] = ForkJoinPool.commonPool().submit(() -> chunk.lexRange());
+		}
+		
+		if(rest < count) {
+			chunks[rest] = chunk(rest, count, pproc, reports);
+			chunks[rest].lexRange();
+		}
+		
+		TokenStream tokens = new TokenStream();
+		boolean     error  = false;
+		int         line   = 0;
+		
+		for(int i = 0; i < Math.min(rest + 1, count); i++) {
+			if(tasks[i] != null)
+				tasks[i].join();
+			
+			out.print(reports[i]);
+			error |= chunks[i].getError();
+			
+			tokens.append(chunks[i].getTokens());
+			line = chunks[i].getTokens().getLine(chunks[i].getTokens().size() - 1);
+		}
+		
+		if(error)
+			return null;
+		
+		tokens.add(TokenType.TK_EOF, 0, line, limit, 0);
+		
+		return tokens;
+	}
+	
+	/*
+	 * One lexer over chunks first up to end
+	 */
+	private Lexer chunk(int first, int end, Preprocessor pproc, ByteArrayOutputStream[] reports) {
+		reports[first] = new ByteArrayOutputStream();
+		
+		return new Lexer(new Source(source.getPath(), buffer, bounds[first], bounds[end], lines[first]), pproc, symbols, new PrintStream(reports[first]));
+	}
+	
+	/*
+	 * Cuts at the first line start after every step bytes and around
+	 * every %include line. Any other directive depends on what came
+	 * before it, the source is then one chunk lexed in order
+	 */
+	private void split(int step) {
+		int     i      = bounds[0];
+		int     line   = lines[0];
+		int     target = i + step;
+		boolean join   = false;
+		
+		while(i < limit) {
+			switch(buffer.get(i)) {
+				case '\n':
+					line++;
+					i++;
+					
+					if(join) {
+						cut(i, line, false);
+						join = false;
+					}
+					else if(i >= target) {
+						cut(i, line, false);
+						target = i + step;
+					}
+					continue;
+				case ';':
+					while(i < limit && buffer.get(i) != '\n')
+						i++;
+					continue;
+				case '/':
+					if(i + 1 < limit && buffer.get(i + 1) == '/') {
+						while(i < limit && buffer.get(i) != '\n')
+							i++;
+						continue;
+					}
+					
+					if(i + 1 < limit && buffer.get(i + 1) == '*') {
+						i += 2;
+						
+						while(i < limit && !(buffer.get(i) == '*' && i + 1 < limit && buffer.get(i + 1) == '/')) {
+							if(buffer.get(i) == '\n')
+								line++;
+							i++;
+						}
+						
+						i += 2;
+						continue;
+					}
+					
+					i++;
+					continue;
+				case '\"':
+					i++;
+					
+					while(i < limit && buffer.get(i) != '\"') {
+						if(buffer.get(i) == '\n')
+							line++;
+						i++;
+					}
+					
+					i++;
+					continue;
+				case '\'':
+					i += i + 2 < limit && buffer.get(i + 2) == '\'' ? 3 : 1;
+					continue;
+				case '%':
+					int start = lineStart(i);
+					
+					if(start < 0 || !isInclude(i + 1)) {
+						ordered[0] = true;
+						bounds[1]  = limit;
+						count      = 1;
+						return;
+					}
+					
+					cut(start, line, true);
+					join = true;
+					i++;
+					continue;
+				default:
+					i++;
+					continue;
+			}
+		}
+		
+		bounds[++count] = limit;
+	}
+	
+	/*
+	 * Starts a chunk at offset at, or marks the one
+	 * starting there when it is the current one
+	 */
+	private void cut(int at, int line, boolean inOrder) {
+		if(at >= limit)
+			return;
+		
+		if(at > bounds[count]) {
+			if(count + 2 > bounds.length) {
+				bounds  = Arrays.copyOf(bounds, bounds.length << 1);
+				lines   = Arrays.copyOf(lines, lines.length << 1);
+				ordered = Arrays.copyOf(ordered, ordered.length << 1);
+			}
+			
+			count++;
+			bounds[count] = at;
+			lines[count]  = line;
+		}
+		
+		ordered[count] = inOrder;
+	}
+	
+	/*
+	 * Start of the line of the directive at offset at,
+	 * -1 when something comes before it on that line
+	 */
+	private int lineStart(int at) {
+		while(at > bounds[0] && (buffer.get(at - 1) == ' ' || buffer.get(at - 1) == '\t'))
+			at--;
+		
+		if(at > bounds[0] && buffer.get(at - 1) != '\n')
+			return -1;
+		return at;
+	}
+	
+	private boolean isInclude(int at) {
+		if(at + include.length > limit)
+			return false;
+		
+		for(int i = 0; i < include.length; i++) {
+			if(buffer.get(at + i) != include[i])
+				return false;
+		}
+		
+		return at + include.length == limit || !Character.isLetterOrDigit(buffer.get(at + include.length));
+	}
+}
@@ -0,0 +1,320 @@
+package lexer;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.HashMap;
+import java.util.zip.CRC32C;
+
+import preprocessor.Preprocessor;
+import preprocessor.Source;
+import symbols.SymbolTable;
+import tokens.TokenStream;
+import tokens.TokenType;
+
+/*********************************************
+ * On disk cache of the tokens of .inc files, *
+ * so shared headers are not lexed again on   *
+ * every assembly. An entry is only used when *
+ * the size, mtime and CRC of the header all  *
+ * match. Symbols are stored by name and      *
+ * interned again when the entry is mapped    *
+ *                                            *
+ * Headers with directives are never cached,  *
+ * what they expand to depends on the file    *
+ * that includes them                         *
+ *                                            *
+ * The entries are under the home of the user *
+ * and are only read when the directory and   *
+ * the entry belong to that user and no one   *
+ * else can write them                        *
+ ********************************************/
+public final class TokenCache {
+	private static final int    magic   = 0x54383038; // T808
+	private static final int    version = 5;
+	private static final String headerext = ".inc";
+	private static final Path   dir = Path.of(System.getProperty("user.home"), ".cache", "asm8080");
+	private static final boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+	private static volatile boolean enabled = true;
+	private static boolean       checked;
+	private static UserPrincipal user;
+	
+	private TokenCache() {
+	}
+	
+	/*
+	 * Headers are lexed every time, nothing is read or written
+	 */
+	public static void disable() {
+		enabled = false;
+	}
+	
+	public static boolean isCacheable(Source source) {
+		if(!enabled || !source.getPath().endsWith(headerext))
+			return false;
+		
+		ByteBuffer buffer = source.getBuffer();
+		
+		for(int i = source.getPos(); i < source.getLimit(); i++) {
+			if(buffer.get(i) == '%')
+				return false;
+		}
+		return true;
+	}
+	
+	/*
+	 * Tokens of a cacheable header, from the cache when it is up to date,
+	 * otherwise lexed and stored. Returns null when the header had errors,
+	 * they were already reported to out
+	 */
+	public static TokenStream tokens(Source source, SymbolTable symbols, PrintStream out) {
+		Path key;
+		BasicFileAttributes attrs;
+		
+		try {
+			key   = Path.of(source.getPath()).toRealPath();
+			attrs = Files.readAttributes(key, BasicFileAttributes.class);
+		}
+		catch(IOException e) {
+			return lex(source, symbols, out);
+		}
+		
+		if(!checkDirectory())
+			return lex(source, symbols, out);
+		
+		CRC32C crc = new CRC32C();
+		
+		crc.update(source.getBuffer().slice(source.getPos(), source.getLimit() - source.getPos()));
+		
+		long   size  = attrs.size();
+		long   mtime = attrs.lastModifiedTime().toMillis();
+		Path   file  = dir.resolve(Integer.toHexString(key.toString().hashCode()) + ".tok");
+		
+		TokenStream tokens = load(file, key.toString(), size, mtime, (int)crc.getValue(), symbols);
+		
+		if(tokens != null)
+			return tokens;
+		
+		tokens = lex(source, symbols, out);
+		
+		if(tokens != null)
+			store(file, key.toString(), size, mtime, (int)crc.getValue(), tokens, symbols);
+		return tokens;
+	}
+	
+	/*
+	 * Made owner only when missing. Checked once, a directory
+	 * someone else could write to turns the cache off
+	 */
+	private static synchronized boolean checkDirectory() {
+		if(checked)
+			return enabled;
+		
+		checked = true;
+		
+		try {
+			user = FileSystems.getDefault().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+			
+			if(posix)
+				Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+			else
+				Files.createDirectories(dir);
+			
+			if(!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS) || !isTrusted(dir))
+				enabled = false;
+		}
+		catch(IOException | RuntimeException e) {
+			enabled = false;
+		}
+		return enabled;
+	}
+	
+	/*
+	 * Owned by the user, not a link, and not writable by others
+	 */
+	private static boolean isTrusted(Path path) throws IOException {
+		if(!user.equals(Files.getOwner(path, LinkOption.NOFOLLOW_LINKS)))
+			return false;
+		
+		if(!posix)
+			return true;
+		
+		var perms = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+		
+		return !perms.contains(PosixFilePermission.GROUP_WRITE) && !perms.contains(PosixFilePermission.OTHERS_WRITE);
+	}
+	
+	private static TokenStream lex(Source source, SymbolTable symbols, PrintStream out) {
+		Lexer lex = new Lexer(source, new Preprocessor(), symbols, out);
+		
+		if(!lex.lexRange())
+			return null;
+		return lex.getTokens();
+	}
+	
+	/*
+	 * Layout: magic, version, size, mtime, crc, path,
+	 * symbol names, strings, token count, then every
+	 * token field as its own array
+	 */
+	private static TokenStream load(Path file, String path, long size, long mtime, int crc, SymbolTable symbols) {
+		if(!Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS))
+			return null;
+		
+		try {
+			if(!isTrusted(file))
+				return null;
+			
+			ByteBuffer in = Preprocessor.map(file);
+			
+			if(in.getInt() != magic || in.getInt() != version || in.getLong() != size
+			   || in.getLong() != mtime || in.getInt() != crc || !path.equals(string(in)))
+				return null;
+			
+			int[] ids = new int[in.getInt()];
+			
+			for(int i = 0; i < ids.length; i++)
+				ids[i] = symbols.intern(string(in));
+			
+			String[] strings = new String[in.getInt()];
+			
+			for(int i = 0; i < strings.length; i++)
+				strings[i] = string(in);
+			
+			int count = in.getInt();
+			
+			byte[] types   = new byte[count];
+			int[]  values  = new int[count];
+			int[]  lines   = new int[count];
+			int[]  starts  = new int[count];
+			int[]  lengths = new int[count];
+			
+			in.get(types);
+			in.asIntBuffer().get(values).get(lines).get(starts).get(lengths);
+			
+			for(int i = 0; i < count; i++) {
+				if(types[i] == TokenType.TK_ID.ordinal() || types[i] == TokenType.TK_LABEL.ordinal())
+					values[i] = ids[values[i]];
+			}
+			
+			return new TokenStream(types, values, lines, starts, lengths, strings);
+		}
+		catch(IOException | RuntimeException e) {
+			return null;
+		}
+	}
+	
+	/*
+	 * Written next to the final name and moved over it, so
+	 * assemblies running at the same time never see half an entry
+	 */
+	private static void store(Path file, String path, long size, long mtime, int crc, TokenStream tokens, SymbolTable symbols) {
+		int count = tokens.size();
+		HashMap<Integer, Integer> local = new HashMap<>();
+		String[] names = new String[count];
+		int[] values = new int[count];
+		int bytes = 44 + 4 * path.length();
+		
+		for(int i = 0; i < count; i++) {
+			TokenType type = tokens.getType(i);
+			
+			values[i] = tokens.getValue(i);
+			
+			if(type != TokenType.TK_ID && type != TokenType.TK_LABEL)
+				continue;
+			
+			Integer id = local.get(values[i]);
+			
+			if(id == null) {
+				id = local.size();
+				local.put(values[i], id);
+				names[id] = symbols.getName(values[i]);
+				bytes += 4 + 4 * names[id].length();
+			}
+			values[i] = id;
+		}
+		
+		for(int i = 0; i < tokens.getStringCount(); i++)
+			bytes += 4 + 4 * tokens.stringAt(i).length();
+		
+		ByteBuffer out = ByteBuffer.allocate(bytes + 17 * count);
+		
+		out.putInt(magic).putInt(version).putLong(size).putLong(mtime).putInt(crc);
+		string(out, path);
+		
+		out.putInt(local.size());
+		for(int i = 0; i < local.size(); i++)
+			string(out, names[i]);
+		
+		out.putInt(tokens.getStringCount());
+		for(int i = 0; i < tokens.getStringCount(); i++)
+			string(out, tokens.stringAt(i));
+		
+		out.putInt(count);
+		for(int i = 0; i < count; i++)
+			out.put((byte)tokens.getType(i).ordinal());
+		for(int i = 0; i < count; i++)
+			out.putInt(values[i]);
+		for(int i = 0; i < count; i++)
+			out.putInt(tokens.getLine(i));
+		for(int i = 0; i < count; i++)
+			out.putInt(tokens.getStart(i));
+		for(int i = 0; i < count; i++)
+			out.putInt(tokens.getLength(i));
+		
+		out.flip();
+		
+		Path tmp = null;
+		
+		try {
+			tmp = Files.createTempFile(dir, null, ".tmp");
+			
+			try(FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				while(out.hasRemaining())
+					fc.write(out);
+			}
+			
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException e) {
+			// the cache is only an optimisation, the header was lexed anyway
+			if(tmp != null)
+				delete(tmp);
+		}
+	}
+	
+	private static void delete(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		}
+		catch(IOException e) {
+			// entries are only read under their final name
+		}
+	}
+	
+	private static String string(ByteBuffer in) {
+		byte[] str = new byte[in.getInt()];
+		
+		in.get(str);
+		
+		return new String(str, StandardCharsets.UTF_8);
+	}
+	
+	private static void string(ByteBuffer out, String str) {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		
+		out.putInt(bytes.length);
+		out.put(bytes);
+	}
+}
@@ -1,103 +1,349 @@
 package parser;
+import java.io.PrintStream;
 import java.util.List;
 import ast.*;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import tokens.*;
 /********************************************
  * This class is responsible for            *
  * parsing the buffer of tokens             *
  * provided by the lexical analyser         *
  *                                          *
+ * Nodes are emitted straight into the      *
+ * arena, children before their parent, so  *
+ * an expression ends up as a postfix range *
+ *                                          *
  * by Eduardo S. Acauan                     *
  *******************************************/
 public class Parser {
-	private List<AST>   trees;
-	private List<Token> tokens;
+	private ASTArena    arena;
+	private ASTArena    args;
+	private TokenStream tokens;
 	private int 		pos;
 	private boolean     error;
+	private boolean     data;
+	private HashMap<Integer, Template> macros;
+	private PrintStream out;
+	
+	public Parser(TokenStream tokens) {
+		this(tokens, System.out);
+	}
 	
-	public Parser(List<Token> tokens) {
+	/*
+	 * Errors are reported to out
+	 */
+	public Parser(TokenStream tokens, PrintStream out) {
 		this.tokens = tokens;
+		this.out    = out;
 		
-		trees = new ArrayList<>();
+		arena  = new ASTArena();
+		args   = new ASTArena();
+		macros = new HashMap<>();
 		pos = 0;
 		error = false;
 	}
 	
 	public boolean build() {
-		while(!endStream()) {
-			AST expr = expression();
-			next();
-			if(expr == null)
-				continue;
-			trees.add(expr);
-		}
+		while(!endStream())
+			statement();
 		
 		if(error)
 			return false;
 		return true;
 	}
 	
-	public List<AST> getTrees() {
-		return trees;
+	private void statement() {
+		switch(peek()) {
+			case TokenType.TK_MACRO:
+				defineMacro();
+				break;
+			case TokenType.TK_ENDM:
+				error("ENDM without MACRO!");
+				break;
+			case TokenType.TK_ID:
+				if(macros.containsKey(value())) {
+					invoke();
+					break;
+				}
+				if(isEquate()) {
+					int equ = equate();
+					
+					if(equ >= 0)
+						arena.addStatement(equ);
+					break;
+				}
+				instruction();
+				break;
+			default:
+				instruction();
+				break;
+		}
+		
+		next();
+	}
+	
+	/*
+	 * Labels, mnemonics and declarations
+	 */
+	private void instruction() {
+		int expr = expression();
+		
+		if(expr < 0)
+			return;
+		
+		if(arena.kind(expr) == AType.REGISTER || arena.kind(expr) == AType.LITERAL) {
+			error("Invalid operation!");
+			return;
+		}
+		arena.addStatement(expr);
+	}
+	
+	/*
+	 * MACRO name a, b ... ENDM, the body is parsed here once.
+	 * Labels in the body are the same labels on every use
+	 */
+	private void defineMacro() {
+		next();
+		
+		if(peek() != TokenType.TK_ID) {
+			error("Macro name expected!");
+			return;
+		}
+		
+		int name = value();
+		List<Integer> params = new ArrayList<>();
+		
+		while(sameLine() && match(TokenType.TK_ID)) {
+			params.add(value());
+			
+			if(!match(TokenType.TK_COMMA))
+				break;
+		}
+		
+		next();
+		
+		// the body goes to an arena of its own,
+		// copied into every use
+		ASTArena outer = arena;
+		ASTArena body  = new ASTArena();
+		
+		arena = body;
+		
+		while(!endStream() && peek() != TokenType.TK_ENDM && peek() != TokenType.TK_MACRO)
+			statement();
+		
+		arena = outer;
+		
+		if(peek() == TokenType.TK_MACRO) {
+			error("MACRO inside a macro!");
+			return;
+		}
+		
+		if(endStream()) {
+			error("Missing ENDM!");
+			return;
+		}
+		
+		macros.put(name, new Template(params.stream().mapToInt(Integer::intValue).toArray(), body));
+	}
+	
+	/*
+	 * A macro name starting a statement, its arguments
+	 * are the expressions on the rest of the line
+	 */
+	private void invoke() {
+		Template      macro = macros.get(value());
+		List<Integer> roots = new ArrayList<>();
+		ASTArena      outer = arena;
+		int           line  = line();
+		
+		// the arguments are parsed on their own and
+		// copied where their parameter is used
+		arena = args;
+		arena.clear();
+		
+		if(sameLine()) {
+			do {
+				next();
+				roots.add(expression());
+			}while(match(TokenType.TK_COMMA));
+		}
+		
+		arena = outer;
+		
+		if(roots.contains(-1))
+			return;
+		
+		if(roots.size() != macro.getParamCount()) {
+			error("Macro takes " + macro.getParamCount() + " arguments!");
+			return;
+		}
+		
+		macro.instantiate(args, roots.stream().mapToInt(Integer::intValue).toArray(), arena, line);
+	}
+	
+	private boolean isEquate() {
+		return sameLine() && (tokens.getType(pos + 1) == TokenType.TK_EQU || tokens.getType(pos + 1) == TokenType.TK_SET);
+	}
+	
+	/*
+	 * name EQU value / name SET value
+	 */
+	private int equate() {
+		int symbol = value();
+		
+		next();
+		
+		AType type = peek() == TokenType.TK_EQU ? AType.EQU : AType.SET;
+		
+		if(!sameLine()) {
+			error("Missing value!");
+			return -1;
+		}
+		
+		next();
+		
+		int value = expression();
+		
+		if(value < 0)
+			return -1;
+		return arena.node(type, symbol, value, -1, line());
+	}
+	
+	public boolean hasMacros() {
+		return !macros.isEmpty();
+	}
+	
+	public ASTArena getArena() {
+		return arena;
 	}
 	
 	public boolean getError() {
 		return error;
 	}
 	
-	private Token peek() {
-		return tokens.get(pos);
+	private TokenType peek() {
+		return tokens.getType(pos);
+	}
+	
+	private int line() {
+		return tokens.getLine(pos);
+	}
+	
+	private int value() {
+		return tokens.getValue(pos);
 	}
 	
 	private boolean match(TokenType type) {
-		if(endStream() || tokens.get(pos + 1).getType() != type)
+		if(endStream() || tokens.getType(pos + 1) != type)
 			return false;
 		next();
 		return true;
 	}
 	
+	private boolean sameLine() {
+		return tokens.getType(pos + 1) != TokenType.TK_EOF && tokens.getLine(pos + 1) == line();
+	}
+	
 	private boolean endStream() {
-		return pos >= tokens.size() || peek().getType() == TokenType.TK_EOF;
+		return peek() == TokenType.TK_EOF;
 	}
 	
-	private AST expression() {
-		AST left = term();
+	/*
+	 * From the lowest precedence: OR XOR, AND, + -,
+	 * * / MOD SHL SHR, then unary - HIGH LOW
+	 */
+	private int expression() {
+		int from = arena.getSize();
+		int left = conjunction();
+		
+		while(match(TokenType.TK_OR) || match(TokenType.TK_XOR)) {
+			TokenType op = peek();
+			
+			if(!operand())
+				return left;
+			
+			int right = conjunction();
+			
+			left = arena.fold(from, left, right, op, line());
+		}
+		
+		return left;
+	}
+	
+	private int conjunction() {
+		int from = arena.getSize();
+		int left = sum();
+		
+		while(match(TokenType.TK_AND)) {
+			if(!operand())
+				return left;
+			
+			int right = sum();
+			
+			left = arena.fold(from, left, right, TokenType.TK_AND, line());
+		}
+		
+		return left;
+	}
+	
+	private int sum() {
+		int from = arena.getSize();
+		int left = term();
 		
 		while(match(TokenType.TK_PLUS) || match(TokenType.TK_MINUS)) {
-			TokenType op = peek().getType();
+			TokenType op = peek();
 			
-			next();
+			if(!operand())
+				return left;
 			
-			AST right = term();
+			int right = term();
 			
-			left = new BinaryExpr(left, right, op, peek().getLine());
+			left = arena.fold(from, left, right, op, line());
 		}
 		
 		return left;
 	}
 	
-	private AST term() {
-		AST left = factor();
+	private int term() {
+		int from = arena.getSize();
+		int left = factor();
 		
-		while(match(TokenType.TK_MUL) || match(TokenType.TK_DIV)) {
-			TokenType op = peek().getType();
+		while(match(TokenType.TK_MUL) || match(TokenType.TK_DIV) || match(TokenType.TK_MOD)
+			  || match(TokenType.TK_SHL) || match(TokenType.TK_SHR)) {
+			TokenType op = peek();
 			
-			next();
+			if(!operand())
+				return left;
 			
-			AST right = factor();
+			int right = factor();
 			
-			left = new BinaryExpr(left, right, op, peek().getLine());
+			left = arena.fold(from, left, right, op, line());
 		}
 		
 		return left;
 	}
 	
-	private AST factor() {
+	/*
+	 * Moves to the operand of an operator, which
+	 * has to be on the same line
+	 */
+	private boolean operand() {
+		if(!sameLine()) {
+			error("Operand expected!");
+			return false;
+		}
+		
+		next();
+		return true;
+	}
+	
+	private int factor() {
 		if(endStream())
-			return null;
-		switch(peek().getType()) {
+			return -1;
+		switch(peek()) {
 			case TokenType.TK_A:
 			case TokenType.TK_B:
 			case TokenType.TK_C:
@@ -109,15 +355,17 @@ public class Parser {
 			case TokenType.TK_HL:
 			case TokenType.TK_SP:
 			case TokenType.TK_PSW:
-				return new Register(peek().getType(), peek().getLine());
+				return arena.node(AType.REGISTER, peek().ordinal(), -1, -1, line());
 			case TokenType.TK_LITERAL:
-				return new Literal(peek().getValue(), peek().getLine());
+				return arena.node(AType.LITERAL, value(), -1, -1, line());
 			case TokenType.TK_LABEL:
-				return new Label(peek().getLexeme(), peek().getLine());
+				return arena.node(AType.LABEL, value(), -1, -1, line());
 			case TokenType.TK_ID:
-				return new Identifier(peek().getLexeme(), peek().getLine());
+				return arena.node(AType.IDENTIFIER, value(), -1, -1, line());
 			case TokenType.TK_STRING:
-				return new StringTree(peek().getLexeme(), peek().getLine());
+				return arena.node(AType.STRING, arena.addString(tokens.getString(pos)), -1, -1, line());
+			case TokenType.TK_INCLUDE:
+				return arena.node(AType.INCLUDE, arena.addString(tokens.getString(pos)), -1, -1, line());
 			case TokenType.TK_HLT://0 args
 			case TokenType.TK_STC:
 			case TokenType.TK_RLC:
@@ -135,33 +383,54 @@ public class Parser {
 			case TokenType.TK_PCHL:
 			case TokenType.TK_XTHL:
 			case TokenType.TK_SPHL:
-			case TokenType.TK_RST:
+			case TokenType.TK_RZ:
+			case TokenType.TK_RC:
+			case TokenType.TK_RPE:
+			case TokenType.TK_RM:
 			case TokenType.TK_RRC:
 			case TokenType.TK_CMC:
 			case TokenType.TK_CMA:
 			case TokenType.TK_RET:
-				return new Mnemonic(null, null, peek().getType(), peek().getLine());
+				return arena.node(AType.MNEMONIC, peek().ordinal(), -1, -1, line());
 			case TokenType.TK_LP:
 				next();
-				AST expr = expression();
+				int expr = expression();
 				if(!match(TokenType.TK_RP)) {
 					error("Missing ')' !");
-					return null;
+					return -1;
 				}
 				
-				if(expr != null && expr.getType() == AType.REGISTER && ((Register)expr).getRG() == TokenType.TK_HL)
-					((Register)expr).setRG(TokenType.TK_M);
+				if(expr >= 0 && arena.kind(expr) == AType.REGISTER && arena.value(expr) == TokenType.TK_HL.ordinal()) {
+					arena.truncate(expr);
+					return arena.node(AType.REGISTER, TokenType.TK_M.ordinal(), -1, -1, line());
+				}
 				return expr;
 			case TokenType.TK_MINUS:
-				if(match(TokenType.TK_LITERAL)) {
-					return new Literal(peek().getValue() * -1, peek().getLine());
-				}
+			case TokenType.TK_HIGH:
+			case TokenType.TK_LOW:
+				TokenType op   = peek();
+				int       from = arena.getSize();
+				
+				if(!operand())
+					return -1;
+				
+				int operand = factor();
+				
+				return arena.unary(from, operand, op, line());
 			case TokenType.TK_PLUS:
 			case TokenType.TK_DIV:
 			case TokenType.TK_COMMA:
 			case TokenType.TK_MUL:
+			case TokenType.TK_EQU:
+			case TokenType.TK_SET:
+			case TokenType.TK_AND:
+			case TokenType.TK_OR:
+			case TokenType.TK_XOR:
+			case TokenType.TK_SHL:
+			case TokenType.TK_SHR:
+			case TokenType.TK_MOD:
 				error("Token in invalid context!");
-				return null;
+				return -1;
 			//1 arg
 			case TokenType.TK_CALL:
 			case TokenType.TK_CZ:
@@ -188,7 +457,10 @@ public class Parser {
 			case TokenType.TK_PUSH:
 			case TokenType.TK_POP:
 			case TokenType.TK_STA:
+			case TokenType.TK_LDA:
 			case TokenType.TK_SHLD:
+			case TokenType.TK_LHLD:
+			case TokenType.TK_RST:
 			case TokenType.TK_STAX:
 			case TokenType.TK_INX:
 			case TokenType.TK_ORG:
@@ -211,13 +483,19 @@ public class Parser {
 			case TokenType.TK_CMP:
 			case TokenType.TK_SBB:
 			case TokenType.TK_SUB:
-				TokenType type = peek().getType();
+				TokenType type = peek();
 				next();
-				return new Mnemonic(expression(), null, type, peek().getLine());
+				int arg = expression();
+				return arena.node(AType.MNEMONIC, type.ordinal(), arg, -1, line());
 			case TokenType.TK_BYTE:
-				return parseByte();
+				return parseData(AType.BYTEDECLARATION, 1);
 			case TokenType.TK_WORD:
-				return parseWord();
+				return parseData(AType.WORDDECLARATION, 2);
+			case TokenType.TK_INCBIN:
+				return parseIncbin();
+			case TokenType.TK_DS:
+			case TokenType.TK_FILL:
+				return parseReserve();
 			default:
 				return parseMnemonic();
 		}
@@ -227,74 +505,138 @@ public class Parser {
 		pos++;
 	}
 	
-	private AST parseByte() {
-		ByteDecl decl = new ByteDecl(peek().getLine());
+	/*
+	 * BYTE/WORD elements, packed by the arena as they are parsed
+	 */
+	private int parseData(AType type, int width) {
+		int line = line();
+		
+		if(data) {
+			error("Token in invalid context!");
+			return -1;
+		}
+		
+		data = true;
+		arena.beginData(width);
 		
 		do {
 			next();
-			AST expr = expression();
-			
-			decl.getBytes().add(expr);
+			arena.element(expression());
 		}while(!endStream() && match(TokenType.TK_COMMA));
 		
-		return decl;
+		data = false;
+		return arena.endData(type, line);
 	}
 	
-	private AST parseWord() {
-		WordDecl decl = new WordDecl(peek().getLine());
+	private int parseIncbin() {
+		int line = line();
 		
-		do {
+		if(!match(TokenType.TK_STRING)) {
+			error("File name expected after INCBIN!");
+			return -1;
+		}
+		
+		String path   = tokens.getString(pos);
+		int    offset = -1;
+		int    length = -1;
+		
+		if(match(TokenType.TK_COMMA)) {
 			next();
-			AST expr = expression();
 			
-			decl.getWords().add(expr);
-		}while(!endStream() && match(TokenType.TK_COMMA));
+			if((offset = expression()) < 0) {
+				error("Missing argument!");
+				return -1;
+			}
+			
+			if(match(TokenType.TK_COMMA)) {
+				next();
+				
+				if((length = expression()) < 0) {
+					error("Missing argument!");
+					return -1;
+				}
+			}
+		}
+		
+		return arena.node(AType.INCBIN, arena.addString(path), offset, length, line);
+	}
+	
+	/*
+	 * DS count / FILL count, value
+	 */
+	private int parseReserve() {
+		AType type  = peek() == TokenType.TK_DS ? AType.DS : AType.FILL;
+		int   line  = line();
+		int   value = -1;
+		
+		next();
+		
+		int count = expression();
+		
+		if(count < 0) {
+			error("Missing argument!");
+			return -1;
+		}
+		
+		if(type == AType.FILL) {
+			if(!match(TokenType.TK_COMMA)) {
+				error("',' expected!");
+				return -1;
+			}
+			
+			next();
+			
+			if((value = expression()) < 0) {
+				error("Missing argument!");
+				return -1;
+			}
+		}
 		
-		return decl;
+		return arena.node(type, 0, count, value, line);
 	}
 	
-	private AST parseMnemonic() {
-		TokenType ins = peek().getType();
+	private int parseMnemonic() {
+		TokenType ins = peek();
 		
 		next();
 		
-		if(peek().getType() == TokenType.TK_EOF) {
+		if(peek() == TokenType.TK_EOF) {
 			error("Missing argument!");
-			return null;
+			return -1;
 		}
 		
-		AST expr = expression();
+		int expr = expression();
 		
-		if(expr == null || expr.getType() == AType.MNEMONIC) {
+		if(expr < 0 || arena.kind(expr) == AType.MNEMONIC) {
 			error("Invalid Left Hand Side !");
-			return null;
+			return -1;
 		}
 		
 		if(!match(TokenType.TK_COMMA)) {
 			error("',' expected!");
-			return null;
+			return -1;
 		}
 		
 		next();
 		
-		if(peek().getType() == TokenType.TK_EOF) {
+		if(peek() == TokenType.TK_EOF) {
 			error("Missing argument!");
-			return null;
+			return -1;
 		}
 		
-		AST expr2 = expression();
+		int expr2 = expression();
 		
-		if(expr2 == null || expr2.getType()  == AType.MNEMONIC) {
+		if(expr2 < 0 || arena.kind(expr2)  == AType.MNEMONIC) {
 			error("Invalid Right Hand Side !");
-			return null;
+			return -1;
 		}
 		
-		return new Mnemonic(expr, expr2, ins, peek().getLine());
+		return arena.node(AType.MNEMONIC, ins.ordinal(), expr, expr2, line());
 	}
 	
 	private void error(String args) {
-		System.out.print("Error(" + peek().getLine() + "): " + args);
-		System.out.print("\n");
+		out.print("Error(" + line() + "): " + args);
+		out.print("\n");
 		error = true;
 		return;
 	}
@@ -0,0 +1,133 @@
+package parser;
+import ast.*;
+import tokens.TokenType;
+
+/********************************************
+ * Body of a MACRO, parsed once into an     *
+ * arena of its own. Using the macro copies *
+ * its statements into the arena of the     *
+ * code using it, with the nodes of the     *
+ * arguments in place of the parameters.    *
+ * The copies go through the same folding   *
+ * and packing as the parser's nodes, so a  *
+ * constant argument folds like a constant  *
+ * written in the body. The copies have the *
+ * line of the use, where their errors are  *
+ * reported                                 *
+ *******************************************/
+class Template {
+	private static final TokenType[] TYPES = TokenType.values();
+	private int[]    params;
+	private ASTArena body;
+	
+	Template(int[] params, ASTArena body) {
+		this.params = params;
+		this.body   = body;
+	}
+	
+	int getParamCount() {
+		return params.length;
+	}
+	
+	/*
+	 * roots are the nodes of the arguments in args, in
+	 * the order of the parameters. line is where the
+	 * macro is used
+	 */
+	void instantiate(ASTArena args, int[] roots, ASTArena out, int line) {
+		for(int i = 0; i < body.getStatementCount(); i++)
+			out.addStatement(copy(body, body.getStatement(i), args, roots, out, line));
+	}
+	
+	/*
+	 * Copies the subtree of node from src into out, children
+	 * first. roots is null when copying an argument, whose
+	 * identifiers are not parameters
+	 */
+	private int copy(ASTArena src, int node, ASTArena args, int[] roots, ASTArena out, int line) {
+		if(node < 0)
+			return -1;
+		
+		AType kind = src.kind(node);
+		int   from = out.getSize();
+		int   left;
+		
+		switch(kind) {
+			case AType.IDENTIFIER:
+				int i = roots == null ? -1 : indexOf(src.value(node));
+				
+				if(i >= 0)
+					return copy(args, roots[i], null, null, out, line);
+				break;
+			case AType.OFFSET:
+				int j = roots == null ? -1 : indexOf(src.value(node));
+				
+				if(j < 0)
+					break;
+				
+				left = copy(args, roots[j], null, null, out, line);
+				
+				return out.fold(from, left, out.node(AType.LITERAL, src.right(node), -1, -1, line), TokenType.TK_PLUS, line);
+			case AType.STRING:
+			case AType.INCLUDE:
+				return out.node(kind, out.addString(src.string(node)), -1, -1, line);
+			case AType.INCBIN:
+				left = copy(src, src.left(node), args, roots, out, line);
+				
+				return out.node(kind, out.addString(src.string(node)), left, copy(src, src.right(node), args, roots, out, line), line);
+			case AType.EQU:
+			case AType.SET:
+			case AType.DS:
+			case AType.FILL:
+			case AType.MNEMONIC:
+				left = copy(src, src.left(node), args, roots, out, line);
+				
+				return out.node(kind, src.value(node), left, copy(src, src.right(node), args, roots, out, line), line);
+			case AType.BINARYEXPR:
+				left = copy(src, src.left(node), args, roots, out, line);
+				
+				return out.fold(from, left, copy(src, src.right(node), args, roots, out, line), TYPES[src.value(node)], line);
+			case AType.UNARYEXPR:
+				return out.unary(from, copy(src, src.left(node), args, roots, out, line), TYPES[src.value(node)], line);
+			case AType.BYTEDECLARATION:
+			case AType.WORDDECLARATION:
+				return data(src, node, args, roots, out, line);
+			default:
+				break;
+		}
+		
+		return out.node(kind, src.value(node), src.left(node), src.right(node), line);
+	}
+	
+	/*
+	 * The packed bytes are copied as they are, the evaluated
+	 * elements go through element() again and are packed when
+	 * they became constants
+	 */
+	private int data(ASTArena src, int node, ASTArena args, int[] roots, ASTArena out, int line) {
+		AType  kind  = src.kind(node);
+		int    width = kind == AType.BYTEDECLARATION ? 1 : 2;
+		byte[] bytes = src.data(node);
+		int    from  = 0;
+		
+		out.beginData(width);
+		
+		for(int i = 0; i < src.count(node); i++) {
+			out.pack(bytes, from, src.offset(node, i));
+			out.element(copy(src, src.element(node, i), args, roots, out, line));
+			from = src.offset(node, i) + width;
+		}
+		
+		out.pack(bytes, from, bytes.length);
+		
+		return out.endData(kind, line);
+	}
+	
+	private int indexOf(int symbol) {
+		for(int i = 0; i < params.length; i++) {
+			if(params[i] == symbol)
+				return i;
+		}
+		return -1;
+	}
+}
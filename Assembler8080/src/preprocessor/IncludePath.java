@@ -0,0 +1,65 @@
+package preprocessor;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/********************************************
+ * Resolves %include names: the working     *
+ * directory is searched first, then every  *
+ * -I directory in the order given.         *
+ *                                          *
+ * Every name is looked up once, hits and   *
+ * misses are both remembered. One instance *
+ * is shared by all the files assembled in  *
+ * a run, so is safe to use from the        *
+ * threads of a FrontEnd                    *
+ *******************************************/
+public class IncludePath {
+	private List<Path> dirs;
+	private ConcurrentHashMap<String, Optional<Path>> cache;
+	
+	public IncludePath() {
+		dirs  = new ArrayList<>();
+		cache = new ConcurrentHashMap<>();
+		
+		dirs.add(Path.of(""));
+	}
+	
+	public void add(String dir) {
+		dirs.add(Path.of(dir));
+		cache.clear();
+	}
+	
+	/*
+	 * Returns the canonical path of the file name refers to
+	 */
+	public Path resolve(String name) throws IOException {
+		Optional<Path> path = cache.computeIfAbsent(name, this::search);
+		
+		if(path.isEmpty())
+			throw new NoSuchFileException(name);
+		return path.get();
+	}
+	
+	private Optional<Path> search(String name) {
+		for(var dir : dirs) {
+			Path path = dir.resolve(name);
+			
+			if(!Files.isRegularFile(path))
+				continue;
+			
+			try {
+				return Optional.of(path.toRealPath());
+			}
+			catch(IOException e) {
+				continue;
+			}
+		}
+		return Optional.empty();
+	}
+}
@@ -0,0 +1,49 @@
+package preprocessor;
+import java.util.HashMap;
+
+import tokens.TokenStream;
+
+/*
+ * A %define, params is null for a plain constant.
+ * The body is kept as tokens and expanded where used,
+ * expansions with arguments are kept by their arguments
+ */
+public class Macro {
+	private int[]       params;
+	private TokenStream body;
+	private HashMap<String, TokenStream> expansions;
+	
+	public Macro(int[] params, TokenStream body) {
+		this.params = params;
+		this.body   = body;
+		
+		expansions = new HashMap<>();
+	}
+	
+	public int[] getParams() {
+		return params;
+	}
+	
+	public TokenStream getBody() {
+		return body;
+	}
+	
+	public TokenStream getExpansion(String args) {
+		return expansions.get(args);
+	}
+	
+	public void putExpansion(String args, TokenStream expansion) {
+		expansions.put(args, expansion);
+	}
+	
+	/*
+	 * Position of symbol among the parameters, or -1
+	 */
+	public int indexOf(int symbol) {
+		for(int i = 0; i < params.length; i++) {
+			if(params[i] == symbol)
+				return i;
+		}
+		return -1;
+	}
+}
@@ -1,180 +1,247 @@
 package preprocessor;
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.charset.StandardCharsets;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 
+import tokens.TokenStream;
+import tokens.TokenType;
+
+/********************************************
+ * Directives are recognised by the lexer,  *
+ * this class gives them their meaning and  *
+ * opens the sources they refer to.         *
+ *                                          *
+ * Files are identified by canonical path,  *
+ * each one is mapped at most once and      *
+ * included at most once per assembly       *
+ *******************************************/
 public class Preprocessor {
-	private String 		  buffer;
-	private int    		  pos;
-	private StringBuilder finalBuffer;
-	private StringBuilder joinedFiles;
-	private int 		  line;
 	private final String  inc = "include";
 	private final String  def = "define";
+	private final String  iff = "if";
+	private final String  ifdef  = "ifdef";
+	private final String  ifndef = "ifndef";
+	private final String  els    = "else";
+	private final String  endif  = "endif";
+	private HashMap<Path, ByteBuffer> cache;
+	private HashSet<Path> included;
+	private ArrayDeque<Path> active;
 	private boolean 	  error;
+	private IncludePath   includes;
+	private Macro[]       macros;
+	private boolean       defined;
+	private TokenStream   expr;
+	private int           at;
+	private boolean       invalid;
+	private PrintStream   out;
 	
-	public Preprocessor(String path) throws IOException {
-		this.pos    = 0;
-		finalBuffer = new StringBuilder();
-		joinedFiles = new StringBuilder();
-		
-		File file = new File(path);
-		
-		buffer = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
-		
-		pos  = 0;
-		line = 1;
-		error = false;
+	public Preprocessor() {
+		this(new IncludePath());
 	}
 	
-	public void preprocess() {
-		include();
+	public Preprocessor(IncludePath includes) {
+		this.includes = includes;
+		
+		cache      = new HashMap<>();
+		included   = new HashSet<>();
+		active     = new ArrayDeque<>();
+		macros     = new Macro[64];
+		error      = false;
 	}
 	
-	public String getFinalBuffer() {
-		return finalBuffer.toString();
+	public Source open(String path) throws IOException {
+		Path key = Path.of(path).toRealPath();
+		
+		included.add(key);
+		active.push(key);
+		
+		return new Source(path, read(key));
 	}
 	
-	private void include() {
-		while(!endStream()) {
-			skipSpaces();
-			
-			if(peek() != '%') {
-				skipLine();
-				continue;
-			}
-			
-			next();
-			
-			
-			String key = captureString();
-			
-			if(!key.equals(inc)) {
-				System.out.print("Error(" + line + "): ");
-				System.out.println("Invalid preprocessor command!");
-				error = true;
-				continue;
-			}
-			
-			next();
-			
-			_skipSpaces();
-			
-			if(peek() != '\"') {
-				System.out.print("Error(" + line + "): ");
-				System.out.println("String expected at preprocessor include!");
-				error = true;
-				continue;
-			}
-			
-			next();
-			
-			String path = captureALL();
-			
-			if(error)
-				return;
-			
-			next();
-			
-			try {
-				joinFiles(path);
-			}
-			catch(IOException e) {
-				error = true;
-				System.out.println("Error: unable to open file \"" + e.getMessage() + "\"");
-				return;
-			}
+	/*
+	 * Sources are mapped read only and scanned in place
+	 */
+	public static ByteBuffer map(Path path) throws IOException {
+		try(FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+			return fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
 		}
-		
-		if(error)
-			return;
-		
-		finalBuffer = joinedFiles;
 	}
 	
-	private boolean joinFiles(String path) throws IOException {
-		File file = new File(path);
-		
-		String tmp = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
-		
-		joinedFiles.append(tmp);
-		joinedFiles.append('\n');
-		
-		return true;
+	public boolean isInclude(String key) {
+		return key.equals(inc);
 	}
 	
-	private void skipSpaces() {
-		while(!endStream() && peek() <= ' ') {
-			joinedFiles.append(peek());
-			next();
-		}
+	public boolean isDefine(String key) {
+		return key.equals(def);
 	}
 	
-	private void _skipSpaces() {
-		while(!endStream() && !endLine() && peek() <= ' ') {
-			next();
-		}
+	public boolean isIf(String key) {
+		return key.equals(iff);
 	}
 	
-	private void skipLine() {
-		do {
-			if(peek() == '\n')
-				line++;
-			joinedFiles.append(peek());
-			next();
-		}while(!endStream() && peek() != '\n');
+	public boolean isIfdef(String key) {
+		return key.equals(ifdef);
 	}
 	
-	private boolean endStream() {
-		return pos >= buffer.length();
+	public boolean isIfndef(String key) {
+		return key.equals(ifndef);
 	}
 	
-	private boolean endLine() {
-		return !endStream() && buffer.charAt(pos) == '\n';
+	public boolean isElse(String key) {
+		return key.equals(els);
 	}
 	
-	private char peek() {
-		return buffer.charAt(pos);
+	public boolean isEndif(String key) {
+		return key.equals(endif);
 	}
 	
-	private void next() {
-		pos++;
+	/*
+	 * Value of an %if expression, its macros already expanded:
+	 * numbers with + - * / and parentheses. Errors are reported
+	 * to out, the stream of the lexer that read the %if
+	 */
+	public int evaluate(TokenStream tokens, PrintStream out) {
+		this.out = out;
+		
+		expr    = tokens;
+		at      = 0;
+		invalid = false;
+		
+		int value = sum();
+		
+		if(!invalid && expr.getType(at) != TokenType.TK_EOF)
+			error("Invalid %if expression!");
+		return value;
 	}
 	
-	private String captureString() {
-		StringBuilder str = new StringBuilder();
+	private int sum() {
+		int value = product();
 		
-		do {
-			str.append(peek());
-			next();
-		}while(!endStream() && isAlpha());
+		while(expr.getType(at) == TokenType.TK_PLUS || expr.getType(at) == TokenType.TK_MINUS) {
+			boolean plus = expr.getType(at++) == TokenType.TK_PLUS;
+			int     right = product();
+			
+			value = plus ? value + right : value - right;
+		}
+		return value;
+	}
+	
+	private int product() {
+		int value = unary();
 		
-		return str.toString();
+		while(expr.getType(at) == TokenType.TK_MUL || expr.getType(at) == TokenType.TK_DIV) {
+			boolean mul   = expr.getType(at++) == TokenType.TK_MUL;
+			int     right = unary();
+			
+			if(!mul && right == 0) {
+				error("Cannot divide by zero!");
+				return 0;
+			}
+			value = mul ? value * right : value / right;
+		}
+		return value;
+	}
+	
+	private int unary() {
+		switch(expr.getType(at)) {
+			case TokenType.TK_LITERAL:
+				return expr.getValue(at++);
+			case TokenType.TK_MINUS:
+				at++;
+				return -unary();
+			case TokenType.TK_LP:
+				at++;
+				
+				int value = sum();
+				
+				if(expr.getType(at) != TokenType.TK_RP) {
+					error("Missing ')' !");
+					return 0;
+				}
+				at++;
+				return value;
+			default:
+				error("Constant expected in %if!");
+				return 0;
+		}
 	}
 	
-	private String captureALL() {
-		StringBuilder str = new StringBuilder();
+	/*
+	 * Only the first error of an expression is reported
+	 */
+	private void error(String args) {
+		if(invalid)
+			return;
+		out.println("Error(" + expr.getLine(at) + "): " + args);
+		invalid = true;
+		error   = true;
+	}
+	
+	/*
+	 * Macros are indexed by the symbol id of their name, the
+	 * symbol table already hashed it when it was interned
+	 */
+	public void define(int symbol, Macro macro) {
+		if(symbol >= macros.length)
+			macros = Arrays.copyOf(macros, Math.max(symbol + 1, macros.length << 1));
 		
-		do {
-			str.append(peek());
-			next();
-		}while(!endLine() && peek() != '\"');
+		macros[symbol] = macro;
+		defined        = true;
+	}
+	
+	public boolean hasMacros() {
+		return defined;
+	}
+	
+	public Macro getMacro(int symbol) {
+		return symbol < macros.length ? macros[symbol] : null;
+	}
+	
+	/*
+	 * Returns the source the lexer switches to, or null when there
+	 * is nothing to lex: the file was already included, or it is
+	 * being included from itself (reported to out)
+	 */
+	public Source include(String path, int line, PrintStream out) throws IOException {
+		Path key = includes.resolve(path);
 		
-		if(endStream() || peek() != '\"') {
-			System.out.println("Error(" + line + "): " + "Missing '\"'");
+		if(active.contains(key)) {
+			out.println("Error(" + line + "): recursive include of \"" + path + "\"");
 			error = true;
+			return null;
 		}
 		
-		return str.toString();
+		if(!included.add(key))
+			return null;
+		
+		active.push(key);
+		
+		return new Source(key.toString(), read(key));
 	}
 	
-	private boolean isAlpha() {
-		return (char)(peek() & 0xDF) >= 'A' && (char)(peek() & 0xDF) <= 'Z';
+	/*
+	 * Called by the lexer when an included source ends
+	 */
+	public void leave() {
+		active.pop();
 	}
 	
-	public int getLine() {
-		return line;
+	private ByteBuffer read(Path key) throws IOException {
+		ByteBuffer buffer = cache.get(key);
+		
+		if(buffer == null) {
+			buffer = map(key);
+			cache.put(key, buffer);
+		}
+		
+		return buffer;
 	}
 	
 	public boolean getError() {
@@ -0,0 +1,52 @@
+package preprocessor;
+import java.nio.ByteBuffer;
+
+/*
+ * A source buffer on the lexer's include stack,
+ * pos and line are saved here while an included
+ * file is being lexed
+ */
+public class Source {
+	private String     path;
+	private ByteBuffer buffer;
+	private int        pos;
+	private int        limit;
+	private int        line;
+	
+	public Source(String path, ByteBuffer buffer) {
+		this(path, buffer, 0, buffer.limit(), 1);
+	}
+	
+	public Source(String path, ByteBuffer buffer, int pos, int limit, int line) {
+		this.path   = path;
+		this.buffer = buffer;
+		this.pos    = pos;
+		this.limit  = limit;
+		this.line   = line;
+	}
+	
+	public void save(int pos, int line) {
+		this.pos  = pos;
+		this.line = line;
+	}
+	
+	public String getPath() {
+		return path;
+	}
+	
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+	
+	public int getPos() {
+		return pos;
+	}
+	
+	public int getLimit() {
+		return limit;
+	}
+	
+	public int getLine() {
+		return line;
+	}
+}
@@ -0,0 +1,80 @@
+package symbols;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/********************************************
+ * Symbol names are interned once by the    *
+ * lexer into dense ids, their values are   *
+ * kept in a primitive array indexed by id  *
+ *                                          *
+ * intern() and getName() may be called by  *
+ * several lexers at once, values are only  *
+ * touched by the code generator            *
+ *******************************************/
+public class SymbolTable {
+	public static final int  UNRESOLVED = Integer.MIN_VALUE;
+	private final int        initialCapacity = 64;
+	private ConcurrentHashMap<String, Integer> ids;
+	private String[]         names;
+	private int[]            values;
+	private int              count;
+	
+	public SymbolTable() {
+		ids    = new ConcurrentHashMap<>();
+		names  = new String[initialCapacity];
+		values = new int[initialCapacity];
+		count  = 0;
+		
+		Arrays.fill(values, UNRESOLVED);
+	}
+	
+	public int intern(String name) {
+		Integer id = ids.get(name);
+		
+		if(id != null)
+			return id;
+		
+		return add(name);
+	}
+	
+	private synchronized int add(String name) {
+		Integer id = ids.get(name);
+		
+		if(id != null)
+			return id;
+		
+		if(count == names.length) {
+			names  = Arrays.copyOf(names, count << 1);
+			values = Arrays.copyOf(values, count << 1);
+			Arrays.fill(values, count, values.length, UNRESOLVED);
+		}
+		
+		names[count] = name;
+		ids.put(name, count);
+		
+		return count++;
+	}
+	
+	/*
+	 * Synchronized with add(), which may replace names
+	 */
+	public synchronized String getName(int id) {
+		return names[id];
+	}
+	
+	public int getValue(int id) {
+		return values[id];
+	}
+	
+	public void setValue(int id, int value) {
+		values[id] = value;
+	}
+	
+	public boolean isResolved(int id) {
+		return values[id] != UNRESOLVED;
+	}
+	
+	public int size() {
+		return count;
+	}
+}
@@ -0,0 +1,12 @@
+package tokens;
+
+/*
+ * Producer of a streaming TokenStream
+ */
+public interface TokenSource {
+	/*
+	 * Appends exactly one token to the stream,
+	 * returns false once TK_EOF has been appended
+	 */
+	boolean fill(TokenStream stream);
+}
@@ -0,0 +1,195 @@
+package tokens;
+import java.util.Arrays;
+
+/********************************************
+ * Tokens stored as parallel primitive      *
+ * arrays, the parser reads them by index.  *
+ * String literals are kept aside and the   *
+ * token value is their index               *
+ *                                          *
+ * A stream built over a TokenSource is a   *
+ * small ring: tokens are pulled on demand  *
+ * when an index past the end is read, and  *
+ * old ones are overwritten                 *
+ *******************************************/
+public class TokenStream {
+	private static final TokenType[] TYPES = TokenType.values();
+	private final int  initialCapacity = 256;
+	private byte[]     types;
+	private int[]      values;
+	private int[]      lines;
+	private int[]      starts;
+	private int[]      lengths;
+	private String[]   strings;
+	private int        size;
+	private int        stringCount;
+	private int        mask;
+	private boolean    bounded;
+	private boolean    exhausted;
+	private TokenSource source;
+	
+	public TokenStream() {
+		this(null, 256);
+	}
+	
+	/*
+	 * Unbounded, for the few tokens of a macro argument or expansion
+	 */
+	public TokenStream(int capacity) {
+		this(null, capacity);
+	}
+	
+	/*
+	 * window must be a power of two and bigger
+	 * than the lookahead the reader needs
+	 */
+	public TokenStream(TokenSource source, int window) {
+		this.source = source;
+		
+		types   = new byte[window];
+		values  = new int[window];
+		lines   = new int[window];
+		starts  = new int[window];
+		lengths = new int[window];
+		strings = new String[source == null ? 16 : window];
+		size    = 0;
+		stringCount = 0;
+		bounded = source != null;
+		mask    = bounded ? window - 1 : -1;
+		exhausted = source == null;
+	}
+	
+	/*
+	 * Unbounded stream over already filled arrays, they are not copied
+	 */
+	public TokenStream(byte[] types, int[] values, int[] lines, int[] starts, int[] lengths, String[] strings) {
+		this.types   = types;
+		this.values  = values;
+		this.lines   = lines;
+		this.starts  = starts;
+		this.lengths = lengths;
+		this.strings = strings;
+		size        = types.length;
+		stringCount = strings.length;
+		bounded     = false;
+		mask        = -1;
+		exhausted   = true;
+	}
+	
+	public void add(TokenType type, int value, int line, int start, int length) {
+		if(!bounded && size == types.length) {
+			types   = Arrays.copyOf(types, size << 1);
+			values  = Arrays.copyOf(values, size << 1);
+			lines   = Arrays.copyOf(lines, size << 1);
+			starts  = Arrays.copyOf(starts, size << 1);
+			lengths = Arrays.copyOf(lengths, size << 1);
+		}
+		
+		int i = size & mask;
+		
+		types[i]   = (byte)type.ordinal();
+		values[i]  = value;
+		lines[i]   = line;
+		starts[i]  = start;
+		lengths[i] = length;
+		size++;
+	}
+	
+	/*
+	 * Appends every token of an unbounded stream except its
+	 * TK_EOF, string literal indexes are moved past our own
+	 */
+	public void append(TokenStream other) {
+		int count = other.size;
+		
+		if(count > 0 && other.types[count - 1] == TokenType.TK_EOF.ordinal())
+			count--;
+		
+		if(size + count > types.length) {
+			int capacity = Math.max(size + count, size << 1);
+			
+			types   = Arrays.copyOf(types, capacity);
+			values  = Arrays.copyOf(values, capacity);
+			lines   = Arrays.copyOf(lines, capacity);
+			starts  = Arrays.copyOf(starts, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+		}
+		
+		System.arraycopy(other.types, 0, types, size, count);
+		System.arraycopy(other.values, 0, values, size, count);
+		System.arraycopy(other.lines, 0, lines, size, count);
+		System.arraycopy(other.starts, 0, starts, size, count);
+		System.arraycopy(other.lengths, 0, lengths, size, count);
+		
+		if(other.stringCount > 0) {
+			for(int i = size; i < size + count; i++) {
+				if(types[i] == TokenType.TK_STRING.ordinal())
+					values[i] += stringCount;
+			}
+			
+			for(int i = 0; i < other.stringCount; i++)
+				addString(other.strings[i]);
+		}
+		
+		size += count;
+	}
+	
+	public int addString(String str) {
+		if(!bounded && stringCount == strings.length)
+			strings = Arrays.copyOf(strings, stringCount << 1);
+		
+		strings[stringCount & mask] = str;
+		
+		return stringCount++;
+	}
+	
+	/*
+	 * Reading past the last token pulls more from the source,
+	 * past the end of the input every token is TK_EOF
+	 */
+	public TokenType getType(int i) {
+		while(i >= size && !exhausted)
+			exhausted = !source.fill(this);
+		
+		if(i >= size)
+			return TokenType.TK_EOF;
+		return TYPES[types[i & mask]];
+	}
+	
+	public int getValue(int i) {
+		return values[i & mask];
+	}
+	
+	public int getLine(int i) {
+		if(i >= size)
+			return size == 0 ? 1 : lines[(size - 1) & mask];
+		return lines[i & mask];
+	}
+	
+	public int getStart(int i) {
+		return starts[i & mask];
+	}
+	
+	public int getLength(int i) {
+		return lengths[i & mask];
+	}
+	
+	public String getString(int i) {
+		return strings[values[i & mask] & mask];
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int getStringCount() {
+		return stringCount;
+	}
+	
+	/*
+	 * By string index, unlike getString which takes a token index
+	 */
+	public String stringAt(int i) {
+		return strings[i & mask];
+	}
+}
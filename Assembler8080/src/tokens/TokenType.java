@@ -104,5 +104,21 @@ public enum TokenType {
 	TK_ACI,
 	TK_SBI,
 	TK_XRI,
-	TK_CPI
+	TK_CPI,
+	TK_INCLUDE,
+	TK_MACRO,
+	TK_ENDM,
+	TK_EQU,
+	TK_SET,
+	TK_AND,
+	TK_OR,
+	TK_XOR,
+	TK_SHL,
+	TK_SHR,
+	TK_MOD,
+	TK_HIGH,
+	TK_LOW,
+	TK_INCBIN,
+	TK_DS,
+	TK_FILL
 }